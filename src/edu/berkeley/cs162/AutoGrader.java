@@ -38,12 +38,12 @@ public class AutoGrader {
 	private static long STORE_DELAY = 1000;
 	private static long CACHE_DELAY = 10;
 	
-	private static KVStore dataStore = null;
+	private static KeyValueInterface dataStore = null;
 	private static KVCache dataCache = null;
 	
 	private static int currentOp = 0;
 	
-	public static void registerKVServer(KVStore dataStore, KVCache dataCache) {
+	public static void registerKVServer(KeyValueInterface dataStore, KVCache dataCache) {
 		AutoGrader.dataStore = dataStore;
 		AutoGrader.dataCache = dataCache;
 	}
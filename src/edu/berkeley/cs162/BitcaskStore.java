@@ -0,0 +1,717 @@
+package edu.berkeley.cs162;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Log-structured storage engine in the style of Bitcask. Values live only on
+ * disk, in a directory of numbered segment files; the heap holds just a hash
+ * index from each key to where its latest value was written. Every change is
+ * appended to the active segment. Once that segment is full it is sealed and
+ * from then on read through a read-only MappedByteBuffer, so lookups in it
+ * cost a page cache hit rather than a system call.
+ *
+ * Overwritten values and deletions leave dead records behind. A background
+ * thread merges sealed segments that are mostly dead: their live records are
+ * copied to a new file that then replaces the segment, under the same number
+ * so that replay order is kept. On startup the index is rebuilt by scanning
+ * the segments in order, and a torn record at the end of the last one is cut
+ * off.
+ *
+ * Each record is the CRC32C of the rest of the record, the key length, the
+ * value length (-1 for a deletion), the UTF-8 key and the UTF-8 value.
+ * Changes return once written to the file; {@link #awaitDurable()} forces
+ * them to disk, sharing one fsync among every writer waiting at the time.
+ * Unlike KVStore there is no simulated delay, since the disk is real.
+ */
+public class BitcaskStore implements KVStorageEngine {
+    static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Milliseconds between looks for segments worth merging
+     */
+    private static final long MERGE_INTERVAL = 30000;
+
+    /**
+     * Fraction of a sealed segment that must be dead before it is merged
+     */
+    private static final double MERGE_THRESHOLD = 0.5;
+
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String MERGE_SUFFIX = ".merge";
+
+    /**
+     * One segment file. Only changed under the write lock.
+     */
+    private static class Segment {
+        final int id;
+        final Path path;
+        /**
+         * Open for appending while this is the active segment, otherwise null
+         */
+        FileChannel channel = null;
+        /**
+         * Set once the segment is sealed
+         */
+        MappedByteBuffer map = null;
+        long size = 0;
+        long deadBytes = 0;
+
+        Segment(int id, Path path) {
+            this.id = id;
+            this.path = path;
+        }
+    }
+
+    /**
+     * Where the latest record for a key is
+     */
+    private static final class Location {
+        final Segment segment;
+        final int offset;
+        final int keyLength;
+        final int valueLength;
+
+        Location(Segment segment, int offset, int keyLength, int valueLength) {
+            this.segment = segment;
+            this.offset = offset;
+            this.keyLength = keyLength;
+            this.valueLength = valueLength;
+        }
+
+        int recordSize() {
+            return HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Location> index = new HashMap<>();
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment active = null;
+
+    /**
+     * Channel of the active segment, for threads forcing it without the lock
+     */
+    private volatile FileChannel activeChannel = null;
+    /**
+     * Bytes written since the store was opened, and how many of them are known to be on disk
+     */
+    private volatile long appended = 0;
+    private volatile long synced = 0;
+    private final Object syncLock = new Object();
+    private final ThreadLocal<long[]> lastWrite = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final Object mergeLock = new Object();
+    private final Thread merger;
+    private volatile boolean closed = false;
+
+    public BitcaskStore(String directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Open the store in the given directory, creating it if need be, and
+     * rebuild the index from the segments already there.
+     * @param directory where the segment files are kept
+     * @param segmentSize bytes after which the active segment is sealed
+     * @throws IOException if the segments cannot be read
+     */
+    public BitcaskStore(String directory, int segmentSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.segmentSize = segmentSize;
+        Files.createDirectories(this.directory);
+        recover();
+
+        merger = new Thread(this::runMerger, "BitcaskStore-merger");
+        merger.setDaemon(true);
+        merger.start();
+    }
+
+    /**
+     * One lock for every key: changes are applied one at a time.
+     */
+    public ReentrantReadWriteLock getLock(String key) {
+        return lock;
+    }
+
+    public int getStripe(String key) {
+        return 0;
+    }
+
+    public void put(String key, String value) throws KVException {
+        AutoGrader.agStorePutStarted(key, value);
+
+        try {
+            byte keyBytes[] = key.getBytes(StandardCharsets.UTF_8);
+            byte valueBytes[] = value.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = encode(keyBytes, valueBytes);
+            int offset = append(new ByteBuffer[] { record }, record.remaining());
+            update(key, new Location(active, offset, keyBytes.length, valueBytes.length));
+        } catch (IOException e) {
+            throw ioError("Could not write value", e);
+        } finally {
+            AutoGrader.agStorePutFinished(key, value);
+        }
+    }
+
+    public String get(String key) throws KVException {
+        AutoGrader.agStoreGetStarted(key);
+
+        try {
+            Location location = index.get(key);
+            if (location == null) {
+                throw new KVException(new KVMessage("resp", KVStore.keyNotFound(key)));
+            }
+            return read(location);
+        } catch (IOException e) {
+            throw ioError("Could not read value", e);
+        } finally {
+            AutoGrader.agStoreGetFinished(key);
+        }
+    }
+
+    public void del(String key) throws KVException {
+        AutoGrader.agStoreDelStarted(key);
+
+        try {
+            if (!index.containsKey(key)) {
+                throw new KVException(new KVMessage("resp", KVStore.keyNotFound(key)));
+            }
+            byte keyBytes[] = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer record = encode(keyBytes, null);
+            append(new ByteBuffer[] { record }, record.remaining());
+            remove(key, record.limit());
+        } catch (IOException e) {
+            throw ioError("Could not delete value", e);
+        } finally {
+            AutoGrader.agStoreDelFinished(key);
+        }
+    }
+
+    public Map<String, String> multiGet(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreGetStarted(key);
+        }
+
+        try {
+            Map<String, String> values = new HashMap<>();
+            for (String key : keys) {
+                Location location = index.get(key);
+                if (location != null) {
+                    values.put(key, read(location));
+                }
+            }
+            return values;
+        } catch (IOException e) {
+            throw ioError("Could not read value", e);
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreGetFinished(key);
+            }
+        }
+    }
+
+    public void multiPut(List<KVPair> pairs) throws KVException {
+        for (KVPair pair : pairs) {
+            AutoGrader.agStorePutStarted(pair.getKey(), pair.getValue());
+        }
+
+        try {
+            ByteBuffer records[] = new ByteBuffer[pairs.size()];
+            int keyLengths[] = new int[records.length];
+            int valueLengths[] = new int[records.length];
+            long total = 0;
+            for (int i = 0; i < records.length; i++) {
+                byte keyBytes[] = pairs.get(i).getKey().getBytes(StandardCharsets.UTF_8);
+                byte valueBytes[] = pairs.get(i).getValue().getBytes(StandardCharsets.UTF_8);
+                records[i] = encode(keyBytes, valueBytes);
+                keyLengths[i] = keyBytes.length;
+                valueLengths[i] = valueBytes.length;
+                total += records[i].remaining();
+            }
+
+            int offset = append(records, total);
+            for (int i = 0; i < records.length; i++) {
+                update(pairs.get(i).getKey(), new Location(active, offset, keyLengths[i], valueLengths[i]));
+                offset += records[i].limit();
+            }
+        } catch (IOException e) {
+            throw ioError("Could not write values", e);
+        } finally {
+            for (KVPair pair : pairs) {
+                AutoGrader.agStorePutFinished(pair.getKey(), pair.getValue());
+            }
+        }
+    }
+
+    public boolean[] multiDel(List<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreDelStarted(key);
+        }
+
+        try {
+            boolean removed[] = new boolean[keys.size()];
+            Set<String> seen = new HashSet<>();
+            List<ByteBuffer> records = new ArrayList<>();
+            List<String> present = new ArrayList<>();
+            long total = 0;
+            for (int i = 0; i < removed.length; i++) {
+                String key = keys.get(i);
+                if (index.containsKey(key) && seen.add(key)) {
+                    removed[i] = true;
+                    ByteBuffer record = encode(key.getBytes(StandardCharsets.UTF_8), null);
+                    records.add(record);
+                    present.add(key);
+                    total += record.remaining();
+                }
+            }
+
+            if (!records.isEmpty()) {
+                append(records.toArray(new ByteBuffer[0]), total);
+                for (int i = 0; i < present.size(); i++) {
+                    remove(present.get(i), records.get(i).limit());
+                }
+            }
+            return removed;
+        } catch (IOException e) {
+            throw ioError("Could not delete values", e);
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreDelFinished(key);
+            }
+        }
+    }
+
+    public void awaitDurable() throws KVException {
+        long mine = lastWrite.get()[0];
+        if (synced >= mine) {
+            return;
+        }
+        synchronized (syncLock) {
+            // Whoever held the lock before may have forced our write along with theirs
+            if (synced >= mine) {
+                return;
+            }
+            long target = appended;
+            try {
+                FileChannel channel = activeChannel;
+                if (channel == null) {
+                    throw new ClosedChannelException();
+                }
+                channel.force(false);
+            } catch (ClosedChannelException e) {
+                // Unless the store was closed, the segment was sealed, and so forced, since target was read
+                if (closed) {
+                    throw ioError("Could not sync", e);
+                }
+            } catch (IOException e) {
+                throw ioError("Could not sync", e);
+            }
+            synced = target;
+        }
+    }
+
+    /**
+     * Stop merging and close the active segment. Changes made afterwards fail.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        merger.interrupt();
+        lock.writeLock().lock();
+        try {
+            if (active != null && active.channel != null) {
+                active.channel.force(false);
+                active.channel.close();
+                active.channel = null;
+            }
+            activeChannel = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static KVException ioError(String what, IOException e) throws KVException {
+        return new KVException(new KVMessage("resp", "IO Error: " + what + ": " + e.getMessage()));
+    }
+
+    private static ByteBuffer encode(byte key[], byte value[]) {
+        int valueLength = value == null ? TOMBSTONE : value.length;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + Math.max(valueLength, 0));
+        record.position(4);
+        record.putInt(key.length).putInt(valueLength).put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Write records to the end of the active segment, sealing it first if
+     * they would not fit. Must hold the write lock.
+     * @return the offset of the first record in the active segment
+     */
+    private int append(ByteBuffer records[], long total) throws IOException {
+        if (closed) {
+            throw new IOException("BitcaskStore is closed");
+        }
+        if (active.size > 0 && active.size + total > segmentSize) {
+            seal();
+        }
+        if (active.size + total > Integer.MAX_VALUE) {
+            throw new IOException("Too large for a segment");
+        }
+
+        long start = active.size;
+        try {
+            long remaining = total;
+            while (remaining > 0) {
+                remaining -= active.channel.write(records);
+            }
+        } catch (IOException e) {
+            // Do not leave part of a record for the next one to be written after
+            try {
+                active.channel.truncate(start);
+            } catch (IOException f) {
+                // The torn record is cut off on the next startup instead
+            }
+            throw e;
+        }
+        active.size += total;
+        appended += total;
+        lastWrite.get()[0] = appended;
+        return (int) start;
+    }
+
+    private void update(String key, Location location) {
+        Location old = index.put(key, location);
+        if (old != null) {
+            old.segment.deadBytes += old.recordSize();
+        }
+    }
+
+    private void remove(String key, int tombstoneSize) {
+        Location old = index.remove(key);
+        if (old != null) {
+            old.segment.deadBytes += old.recordSize();
+        }
+        // A tombstone is only kept for as long as older records for its key may exist
+        active.deadBytes += tombstoneSize;
+    }
+
+    private String read(Location location) throws IOException {
+        byte value[] = new byte[location.valueLength];
+        long position = location.offset + HEADER_SIZE + location.keyLength;
+        Segment segment = location.segment;
+        if (segment.map != null) {
+            segment.map.get((int) position, value);
+        } else {
+            ByteBuffer buf = ByteBuffer.wrap(value);
+            while (buf.hasRemaining()) {
+                if (segment.channel.read(buf, position + buf.position()) < 0) {
+                    throw new EOFException("Record cut short in " + segment.path);
+                }
+            }
+        }
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Seal the active segment and start the next. Must hold the write lock.
+     */
+    private void seal() throws IOException {
+        Segment sealed = active;
+        sealed.channel.force(false);
+        sealed.map = sealed.channel.map(FileChannel.MapMode.READ_ONLY, 0, sealed.size);
+        open(sealed.id + 1);
+        sealed.channel.close();
+        sealed.channel = null;
+    }
+
+    /**
+     * Make a new, empty segment the active one.
+     */
+    private void open(int id) throws IOException {
+        Segment segment = new Segment(id, directory.resolve(segmentName(id)));
+        segment.channel = FileChannel.open(segment.path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(id, segment);
+        active = segment;
+        activeChannel = segment.channel;
+    }
+
+    private static String segmentName(int id) {
+        return String.format("%08d", id) + SEGMENT_SUFFIX;
+    }
+
+    /**
+     * Rebuild the index from the segments on disk, oldest first, and make
+     * the newest one the active segment.
+     */
+    private void recover() throws IOException {
+        TreeMap<Integer, Path> found = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(MERGE_SUFFIX)) {
+                    // A merge that did not finish; the segment it was replacing is intact
+                    Files.delete(file);
+                } else if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        found.put(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())), file);
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+
+        for (Map.Entry<Integer, Path> entry : found.entrySet()) {
+            Segment segment = new Segment(entry.getKey(), entry.getValue());
+            boolean last = entry.getKey().equals(found.lastKey());
+            try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Segment too large: " + segment.path);
+                }
+                segment.map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                segment.size = scan(segment);
+                if (segment.size < size) {
+                    KVLog.log(KVLog.Level.ERROR, "BitcaskStore: discarding %d bytes of torn or corrupt records at the end of %s",
+                            size - segment.size, segment.path);
+                    if (last) {
+                        channel.truncate(segment.size);
+                        channel.force(true);
+                    }
+                }
+            }
+            segments.put(segment.id, segment);
+        }
+
+        if (segments.isEmpty()) {
+            open(1);
+        } else {
+            Segment last = segments.lastEntry().getValue();
+            if (last.size >= segmentSize) {
+                open(last.id + 1);
+            } else {
+                // Keep appending to it; reads go through the channel until it is sealed again
+                last.map = null;
+                last.channel = FileChannel.open(last.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                last.channel.position(last.size);
+                active = last;
+                activeChannel = last.channel;
+            }
+        }
+        KVLog.log(KVLog.Level.INFO, "BitcaskStore: recovered %d keys from %d segments in %s", index.size(), segments.size(), directory);
+    }
+
+    /**
+     * Add the records of a segment to the index.
+     * @return the offset just past the last intact record
+     */
+    private long scan(Segment segment) {
+        MappedByteBuffer map = segment.map;
+        int limit = map.limit();
+        int offset = 0;
+        CRC32C crc = new CRC32C();
+        while (limit - offset >= HEADER_SIZE) {
+            int checksum = map.getInt(offset);
+            int keyLength = map.getInt(offset + 4);
+            int valueLength = map.getInt(offset + 8);
+            if (keyLength < 0 || valueLength < TOMBSTONE
+                    || (long) HEADER_SIZE + keyLength + Math.max(valueLength, 0) > limit - offset) {
+                break;
+            }
+            int size = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+            crc.reset();
+            crc.update(map.duplicate().position(offset + 4).limit(offset + size));
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            byte key[] = new byte[keyLength];
+            map.get(offset + HEADER_SIZE, key);
+            String k = new String(key, StandardCharsets.UTF_8);
+            if (valueLength == TOMBSTONE) {
+                Location old = index.remove(k);
+                if (old != null) {
+                    old.segment.deadBytes += old.recordSize();
+                }
+                segment.deadBytes += size;
+            } else {
+                update(k, new Location(segment, offset, keyLength, valueLength));
+            }
+            offset += size;
+        }
+        return offset;
+    }
+
+    private void runMerger() {
+        while (!closed) {
+            try {
+                Thread.sleep(MERGE_INTERVAL);
+                merge();
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                KVLog.log(KVLog.Level.ERROR, "BitcaskStore: merge failed: %s", e);
+            }
+        }
+    }
+
+    /**
+     * Merge every sealed segment that is at least MERGE_THRESHOLD dead. Runs
+     * in the background, but may also be called directly.
+     */
+    public void merge() throws IOException {
+        synchronized (mergeLock) {
+            List<Segment> candidates = new ArrayList<>();
+            lock.readLock().lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.deadBytes >= segment.size * MERGE_THRESHOLD) {
+                        candidates.add(segment);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+            for (Segment segment : candidates) {
+                if (closed) {
+                    return;
+                }
+                merge(segment);
+            }
+        }
+    }
+
+    /**
+     * Replace a sealed segment with a copy holding only the records still
+     * needed. The copy is written without the lock; only swapping it in
+     * blocks other threads.
+     */
+    private void merge(Segment segment) throws IOException {
+        List<String> keys = new ArrayList<>();
+        List<Integer> offsets = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        MappedByteBuffer map = segment.map;
+
+        lock.readLock().lock();
+        try {
+            boolean oldest = segments.firstKey() == segment.id;
+            int offset = 0;
+            while (offset < segment.size) {
+                int keyLength = map.getInt(offset + 4);
+                int valueLength = map.getInt(offset + 8);
+                int size = HEADER_SIZE + keyLength + Math.max(valueLength, 0);
+                if ((long) offset + size > segment.size) {
+                    // Cannot happen, as size stops at the last intact record
+                    break;
+                }
+                byte key[] = new byte[keyLength];
+                map.get(offset + HEADER_SIZE, key);
+                String k = new String(key, StandardCharsets.UTF_8);
+                Location location = index.get(k);
+                boolean keep = valueLength == TOMBSTONE
+                        ? !oldest && location == null
+                        : location != null && location.segment == segment && location.offset == offset;
+                if (keep) {
+                    keys.add(k);
+                    offsets.add(offset);
+                    sizes.add(size);
+                }
+                offset += size;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        Path copy = directory.resolve(segmentName(segment.id) + MERGE_SUFFIX);
+        try (FileChannel out = FileChannel.open(copy, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < keys.size(); i++) {
+                ByteBuffer record = map.duplicate();
+                record.position(offsets.get(i)).limit(offsets.get(i) + sizes.get(i));
+                while (record.hasRemaining()) {
+                    out.write(record);
+                }
+            }
+            out.force(true);
+
+            lock.writeLock().lock();
+            try {
+                if (closed) {
+                    Files.delete(copy);
+                    return;
+                }
+                Segment merged = new Segment(segment.id, segment.path);
+                merged.size = out.size();
+                merged.map = out.map(FileChannel.MapMode.READ_ONLY, 0, merged.size);
+                long live = 0;
+                int newOffset = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    Location location = index.get(keys.get(i));
+                    // Records changed since the scan stay in the copy, but dead
+                    if (map.getInt(offsets.get(i) + 8) == TOMBSTONE) {
+                        if (location == null) {
+                            // Counted as live so that a segment of needed tombstones is not merged over and over
+                            live += sizes.get(i);
+                        }
+                    } else if (location != null && location.segment == segment && location.offset == offsets.get(i)) {
+                        index.put(keys.get(i), new Location(merged, newOffset, location.keyLength, location.valueLength));
+                        live += sizes.get(i);
+                    }
+                    newOffset += sizes.get(i);
+                }
+                merged.deadBytes = merged.size - live;
+
+                // The records that made dropped ones dead may not be forced yet, and must be before those are gone
+                synchronized (syncLock) {
+                    active.channel.force(false);
+                    synced = appended;
+                }
+
+                if (merged.size == 0) {
+                    Files.delete(copy);
+                    Files.delete(segment.path);
+                    segments.remove(segment.id);
+                } else {
+                    Files.move(copy, segment.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    segments.put(segment.id, merged);
+                }
+                KVLog.log(KVLog.Level.INFO, "BitcaskStore: merged %s from %d to %d bytes", segment.path, segment.size, merged.size);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+}
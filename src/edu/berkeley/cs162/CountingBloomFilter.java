@@ -0,0 +1,122 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter whose bits are small counters, so keys can be removed as
+ * well as added. A key is hashed to several counters; adding it increments
+ * each of them and removing it decrements them, and a key whose counters
+ * are not all above zero was certainly never added, or has been removed.
+ * A key that was added is always reported as possibly present.
+ *
+ * Counters are four bits, sixteen to a long, and are updated with
+ * compare-and-set, so the filter can be read and changed from any number of
+ * threads without locking. A counter that reaches 15 sticks there, since
+ * its true count is no longer known; that only adds false positives.
+ */
+public class CountingBloomFilter {
+    private static final int COUNTER_BITS = 4;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / COUNTER_BITS;
+    private static final long MAX_COUNT = (1L << COUNTER_BITS) - 1;
+
+    private final AtomicLongArray words;
+    private final int counters;
+    private final int hashes;
+
+    /**
+     * Size the filter for a number of keys, with about ten counters per key
+     * and seven hashes: roughly a 1% false positive rate at that size.
+     * @param expectedKeys the number of keys the filter is expected to hold at once
+     */
+    public CountingBloomFilter(int expectedKeys) {
+        this((int) Math.min(Integer.MAX_VALUE - COUNTERS_PER_WORD, Math.max(64L, 10L * expectedKeys)), 7);
+    }
+
+    /**
+     * @param counters the number of counters
+     * @param hashes the number of counters each key is hashed to
+     */
+    public CountingBloomFilter(int counters, int hashes) {
+        this.counters = counters;
+        this.hashes = hashes;
+        this.words = new AtomicLongArray((counters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            update(index(hash, i), 1);
+        }
+    }
+
+    /**
+     * Remove a key that was added. Removing a key that was not added may
+     * make keys that were report as absent.
+     */
+    public void remove(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            update(index(hash, i), -1);
+        }
+    }
+
+    /**
+     * @return false if the key is certainly not in the filter
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        for (int i = 0; i < hashes; i++) {
+            int index = index(hash, i);
+            if (count(words.get(index / COUNTERS_PER_WORD), index) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void update(int index, int delta) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+        while (true) {
+            long old = words.get(word);
+            long count = count(old, index);
+            if (count == MAX_COUNT || (count == 0 && delta < 0)) {
+                return;
+            }
+            if (words.compareAndSet(word, old, old + ((long) delta << shift))) {
+                return;
+            }
+        }
+    }
+
+    private static long count(long word, int index) {
+        return (word >>> ((index % COUNTERS_PER_WORD) * COUNTER_BITS)) & MAX_COUNT;
+    }
+
+    /**
+     * The i-th counter for a key, by double hashing on the two halves of its hash
+     */
+    private int index(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return Math.floorMod(h1 + i * h2, counters);
+    }
+
+    /**
+     * 64-bit FNV-1a over the key's characters, then a final mix so that both
+     * halves depend on every character
+     */
+    private static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
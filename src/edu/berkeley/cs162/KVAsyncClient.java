@@ -0,0 +1,382 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking counterpart to {@link KVClient}. Every request is tagged with an
+ * id and written to one of a few long-lived connections by a single I/O
+ * thread, so a caller can have any number of requests in flight without
+ * parking a thread on each. Responses are matched back to their requests by
+ * id, in whatever order the server completes them.
+ *
+ * Futures are completed on the I/O thread; callers with expensive follow-up
+ * work should use the *Async variants of the CompletableFuture methods. The
+ * server must accept pipelined requests, as NioSocketServer and a keep-alive
+ * KVClientHandler do.
+ */
+public class KVAsyncClient {
+    private static final long REQUEST_TIMEOUT = 20000;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private static final String CONNECT_ERR = "Network Error: Could not establish connection with host";
+    private static final String CLOSED_ERR = "Network Error: Client closed";
+
+    private final InetSocketAddress address;
+    private final Selector selector;
+    private final Thread ioThread;
+    private final Connection connections[];
+    private final Queue<Request> submitted = new ConcurrentLinkedQueue<>();
+    private final AtomicLong nextId = new AtomicLong();
+    private volatile boolean closed = false;
+    /**
+     * Whether the server has shown that it can read compressed values
+     */
+    private volatile boolean serverInflates = false;
+
+    private int nextConnection = 0;
+    private long lastSweep = System.currentTimeMillis();
+
+    public KVAsyncClient(String server, int port) throws IOException {
+        this(server, port, 1);
+    }
+
+    /**
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param connections number of connections requests are spread over
+     * @throws IOException if the selector cannot be opened
+     */
+    public KVAsyncClient(String server, int port, int connections) throws IOException {
+        this.address = new InetSocketAddress(server, port);
+        this.selector = Selector.open();
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection();
+        }
+        this.ioThread = new Thread(this::run, "KVAsyncClient-io");
+        this.ioThread.setDaemon(true);
+        this.ioThread.start();
+    }
+
+    /**
+     * @return a future holding the value, or failing with a KVException if the key does not exist
+     */
+    public CompletableFuture<String> getAsync(String key) {
+        KVMessage message;
+        try {
+            message = new KVMessage("getreq");
+        } catch (KVException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        message.setKey(key);
+        return send(message).thenCompose(response -> response.getValue() != null
+                ? CompletableFuture.completedFuture(response.getValue())
+                : CompletableFuture.failedFuture(new KVException(response)));
+    }
+
+    public CompletableFuture<Void> putAsync(String key, String value) {
+        KVMessage message;
+        try {
+            KVClient.checkPut(key, value);
+            message = new KVMessage("putreq");
+        } catch (KVException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        message.setKey(key);
+        message.setValue(value);
+        return send(message).thenCompose(KVAsyncClient::checkSuccess);
+    }
+
+    public CompletableFuture<Void> delAsync(String key) {
+        KVMessage message;
+        try {
+            message = new KVMessage("delreq");
+        } catch (KVException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        message.setKey(key);
+        return send(message).thenCompose(KVAsyncClient::checkSuccess);
+    }
+
+    /**
+     * Stop the I/O thread and close the connections. Requests still in flight fail.
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private static CompletableFuture<Void> checkSuccess(KVMessage response) {
+        return "Success".equals(response.getMessage())
+                ? CompletableFuture.completedFuture(null)
+                : CompletableFuture.failedFuture(new KVException(response));
+    }
+
+    private CompletableFuture<KVMessage> send(KVMessage message) {
+        message.setId(Long.toString(nextId.getAndIncrement()));
+        message.setFormat(KVMessage.Format.BINARY);
+        message.setAcceptsCompression(serverInflates);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            message.sendMessage(out);
+        } catch (KVException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        Request request = new Request(message.getId(), ByteBuffer.wrap(out.toByteArray()));
+        if (closed) {
+            request.fail(CLOSED_ERR);
+            return request.future;
+        }
+        submitted.add(request);
+        // The I/O thread may have drained the queue for the last time between the check and the add
+        if (closed && submitted.remove(request)) {
+            request.fail(CLOSED_ERR);
+            return request.future;
+        }
+        selector.wakeup();
+        return request.future;
+    }
+
+    private static class Request {
+        final String id;
+        final ByteBuffer encoded;
+        final CompletableFuture<KVMessage> future = new CompletableFuture<>();
+        final long deadline = System.currentTimeMillis() + REQUEST_TIMEOUT;
+
+        Request(String id, ByteBuffer encoded) {
+            this.id = id;
+            this.encoded = encoded;
+        }
+
+        void fail(String error) {
+            try {
+                future.completeExceptionally(new KVException(new KVMessage("resp", error)));
+            } catch (KVException e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void run() {
+        while (!closed) {
+            try {
+                selector.select(1000);
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+
+            Request request;
+            while ((request = submitted.poll()) != null) {
+                connections[nextConnection].submit(request);
+                nextConnection = (nextConnection + 1) % connections.length;
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                Connection conn = (Connection) key.attachment();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isConnectable()) {
+                    conn.finishConnect();
+                }
+                if (key.isValid() && key.isReadable()) {
+                    conn.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.write();
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - lastSweep >= 1000) {
+                lastSweep = now;
+                for (Connection conn : connections) {
+                    conn.expire(now);
+                }
+            }
+        }
+
+        Request request;
+        while ((request = submitted.poll()) != null) {
+            request.fail(CLOSED_ERR);
+        }
+        for (Connection conn : connections) {
+            conn.close(CLOSED_ERR);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * One connection to the server. Only touched from the I/O thread.
+     */
+    private class Connection {
+        private SocketChannel channel = null;
+        private SelectionKey key = null;
+        private boolean connected = false;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private final Map<String, Request> inFlight = new HashMap<>();
+
+        void submit(Request request) {
+            if (channel == null && !open()) {
+                request.fail(CONNECT_ERR);
+                return;
+            }
+            inFlight.put(request.id, request);
+            writeQueue.add(request.encoded);
+            if (connected) {
+                write();
+            }
+        }
+
+        private boolean open() {
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connected = channel.connect(address);
+                key = channel.register(selector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+                return true;
+            } catch (IOException e) {
+                close(CONNECT_ERR);
+                return false;
+            }
+        }
+
+        void finishConnect() {
+            try {
+                channel.finishConnect();
+                connected = true;
+                key.interestOps(SelectionKey.OP_READ);
+                write();
+            } catch (IOException e) {
+                close(CONNECT_ERR);
+            }
+        }
+
+        void read() {
+            try {
+                if (channel.read(readBuffer) < 0) {
+                    close(KVMessage.NETWORK_ERR);
+                    return;
+                }
+
+                readBuffer.flip();
+                int length;
+                while ((length = KVMessageFrameDecoder.frameLength(readBuffer)) >= 0) {
+                    byte frame[] = new byte[length];
+                    readBuffer.get(frame);
+                    complete(frame);
+                }
+                readBuffer.compact();
+
+                if (!readBuffer.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(Math.min(readBuffer.capacity() * 2, KVMessageFrameDecoder.MAX_FRAME_SIZE));
+                    readBuffer.flip();
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                }
+            } catch (IOException e) {
+                close(KVMessage.NETWORK_ERR);
+            }
+        }
+
+        private void complete(byte frame[]) throws IOException {
+            KVMessage response;
+            try {
+                response = new KVMessage(frame);
+            } catch (KVException e) {
+                response = e.getMsg();
+            }
+
+            if (response.acceptsCompression()) {
+                serverInflates = true;
+            }
+            Request request = response.getId() == null ? null : inFlight.remove(response.getId());
+            if (request != null) {
+                request.future.complete(response);
+            } else if (response.getId() == null) {
+                // An untagged reply means the server could not read one of our requests
+                throw new IOException(response.getMessage());
+            }
+        }
+
+        void write() {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer buf = writeQueue.peek();
+                    channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                close(KVMessage.NETWORK_ERR);
+            }
+        }
+
+        void expire(long now) {
+            Iterator<Request> it = inFlight.values().iterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                if (now > request.deadline) {
+                    it.remove();
+                    request.fail(KVMessage.NETWORK_ERR);
+                }
+            }
+        }
+
+        /**
+         * Drop the connection and fail everything still waiting on it. The
+         * next request to be assigned here opens a new one.
+         */
+        void close(String error) {
+            if (key != null) {
+                key.cancel();
+            }
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Already broken
+                }
+            }
+            channel = null;
+            key = null;
+            connected = false;
+            readBuffer.clear();
+            writeQueue.clear();
+            for (Request request : inFlight.values()) {
+                request.fail(error);
+            }
+            inFlight.clear();
+        }
+    }
+}
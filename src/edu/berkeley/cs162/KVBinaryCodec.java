@@ -0,0 +1,554 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary encoding of a KVMessage, used as an alternative to the XML
+ * format when both ends support it. A frame is laid out as
+ *
+ * <pre>
+ * magic (2) | version (1) | type (1) | flags (1) | body length (4) | body
+ * </pre>
+ *
+ * where the body holds, in order, the id, key, value and message fields that
+ * are flagged as present, each as a 4 byte length followed by UTF-8 bytes.
+ * A batch message follows them with a 4 byte count of pairs, each a flags
+ * byte and then its own key, value and message fields. A scan request ends
+ * with its limit as 4 bytes, a flags byte, and its end key and prefix if
+ * flagged; a scan response carries its entries as pairs, like a batch.
+ * The magic never starts a serialization stream, so a receiver can tell the
+ * two formats apart from the first two bytes of a message.
+ *
+ * Every frame written here is flagged to say that its sender can read
+ * compressed values. Once a peer has sent such a frame, values of at least
+ * COMPRESSION_THRESHOLD bytes going to it are compressed with zlib at its
+ * fastest level and flagged as such, unless that does not make them smaller.
+ */
+public class KVBinaryCodec {
+    public static final int MAGIC = 0x4B56;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 9;
+
+    private static final int HAS_ID = 0x1;
+    private static final int HAS_KEY = 0x2;
+    private static final int HAS_VALUE = 0x4;
+    private static final int HAS_MESSAGE = 0x8;
+    private static final int VALUE_DEFLATED = 0x10;
+    private static final int ACCEPTS_DEFLATE = 0x20;
+    private static final int HAS_PAIRS = 0x40;
+    private static final int HAS_SCAN = 0x80;
+
+    private static final int SCAN_HAS_END_KEY = 0x1;
+    private static final int SCAN_HAS_PREFIX = 0x2;
+
+    /**
+     * Encoded values shorter than this are never compressed
+     */
+    static final int COMPRESSION_THRESHOLD = 4 * 1024;
+    /**
+     * Most bytes a compressed value may inflate to: the longest value the
+     * server accepts, at three UTF-8 bytes per char
+     */
+    static final int MAX_INFLATED_VALUE_SIZE = 3 * KVServer.MAX_VAL_SIZE;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static final String[] TYPES = {"getreq", "putreq", "delreq", "resp",
+            "multigetreq", "multiputreq", "multidelreq", "multiresp", "scanreq", "scanresp"};
+
+    /**
+     * @param magic the first two bytes of a message
+     * @return true if the message is in the binary format
+     */
+    public static boolean isBinary(int magic) {
+        return magic == MAGIC;
+    }
+
+    /**
+     * Encode a message into a single frame.
+     * @param msg the message to encode
+     * @return the frame
+     * @throws KVException if the message is missing fields required by its type
+     */
+    public static byte[] encode(KVMessage msg) throws KVException {
+        ByteBuffer buffers[] = encodeBuffers(msg);
+        if (buffers.length == 1) {
+            return buffers[0].array();
+        }
+
+        int length = 0;
+        for (ByteBuffer buf : buffers) {
+            length += buf.remaining();
+        }
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        for (ByteBuffer buf : buffers) {
+            frame.put(buf);
+        }
+        return frame.array();
+    }
+
+    /**
+     * Encode a message as a sequence of buffers to be written back to back.
+     * If the message carries an encoded value it is one of the buffers,
+     * shared rather than copied, so the frame can go out with a gathering
+     * write; otherwise the whole frame is in a single heap buffer.
+     * @param msg the message to encode
+     * @return buffers, each positioned at its start, which together hold the frame
+     * @throws KVException if the message is missing fields required by its type
+     */
+    public static ByteBuffer[] encodeBuffers(KVMessage msg) throws KVException {
+        msg.checkFields();
+
+        byte id[] = utf8(msg.getId());
+        byte key[] = utf8(msg.getKey());
+        byte message[] = utf8(msg.getMessage());
+
+        int flags = ACCEPTS_DEFLATE;
+        ByteBuffer value = null;
+        if (msg.getValue() != null) {
+            value = msg.getEncodedValue();
+            if (value != null && msg.isEncodedValueDeflated()) {
+                flags |= VALUE_DEFLATED;
+            } else {
+                if (value == null) {
+                    value = ByteBuffer.wrap(utf8(msg.getValue()));
+                }
+                if (msg.acceptsCompression() && value.remaining() >= COMPRESSION_THRESHOLD) {
+                    ByteBuffer deflated = deflate(value);
+                    if (deflated != null) {
+                        value = deflated;
+                        flags |= VALUE_DEFLATED;
+                    }
+                }
+            }
+        }
+
+        int bodyLength = 0;
+        if (id != null) {
+            flags |= HAS_ID;
+            bodyLength += 4 + id.length;
+        }
+        if (key != null) {
+            flags |= HAS_KEY;
+            bodyLength += 4 + key.length;
+        }
+        if (value != null) {
+            flags |= HAS_VALUE;
+            bodyLength += 4 + value.remaining();
+        }
+        if (message != null) {
+            flags |= HAS_MESSAGE;
+            bodyLength += 4 + message.length;
+        }
+        byte pairs[] = null;
+        if (msg.hasPairs()) {
+            pairs = encodePairs(msg.getPairs(), msg.acceptsCompression());
+            flags |= HAS_PAIRS;
+            bodyLength += pairs.length;
+        }
+        byte scan[] = null;
+        if (msg.getMsgType().equals("scanreq")) {
+            scan = encodeScan(msg);
+            flags |= HAS_SCAN;
+            bodyLength += scan.length;
+        }
+
+        boolean shareValue = value != null && !value.hasArray();
+        int tailLength = message == null ? 0 : 4 + message.length;
+        ByteBuffer head = ByteBuffer.allocate(shareValue ? HEADER_SIZE + bodyLength - value.remaining() - tailLength
+                : HEADER_SIZE + bodyLength);
+        head.putShort((short) MAGIC);
+        head.put((byte) VERSION);
+        head.put((byte) typeCode(msg.getMsgType()));
+        head.put((byte) flags);
+        head.putInt(bodyLength);
+        putField(head, id);
+        putField(head, key);
+        if (!shareValue) {
+            if (value != null) {
+                head.putInt(value.remaining());
+                head.put(value);
+            }
+            putField(head, message);
+            if (pairs != null) {
+                head.put(pairs);
+            }
+            if (scan != null) {
+                head.put(scan);
+            }
+            head.flip();
+            return new ByteBuffer[] {head};
+        }
+
+        head.putInt(value.remaining());
+        head.flip();
+        if (message == null) {
+            return new ByteBuffer[] {head, value};
+        }
+        ByteBuffer tail = ByteBuffer.allocate(tailLength);
+        putField(tail, message);
+        tail.flip();
+        return new ByteBuffer[] {head, value, tail};
+    }
+
+    private static byte[] encodePairs(List<KVPair> pairs, boolean compress) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(pairs.size());
+            for (KVPair pair : pairs) {
+                byte key[] = utf8(pair.getKey());
+                byte value[] = utf8(pair.getValue());
+                byte message[] = utf8(pair.getMessage());
+
+                int flags = (key != null ? HAS_KEY : 0) | (value != null ? HAS_VALUE : 0) | (message != null ? HAS_MESSAGE : 0);
+                if (compress && value != null && value.length >= COMPRESSION_THRESHOLD) {
+                    ByteBuffer deflated = deflate(ByteBuffer.wrap(value));
+                    if (deflated != null) {
+                        value = deflated.array();
+                        flags |= VALUE_DEFLATED;
+                    }
+                }
+                out.writeByte(flags);
+                writeField(out, key);
+                writeField(out, value);
+                writeField(out, message);
+            }
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeScan(KVMessage msg) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        byte endKey[] = utf8(msg.getEndKey());
+        byte prefix[] = utf8(msg.getPrefix());
+        try {
+            out.writeInt(msg.getLimit());
+            out.writeByte((endKey != null ? SCAN_HAS_END_KEY : 0) | (prefix != null ? SCAN_HAS_PREFIX : 0));
+            writeField(out, endKey);
+            writeField(out, prefix);
+        } catch (IOException e) {
+            // Not thrown by an in-memory stream
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeField(DataOutputStream out, byte field[]) throws IOException {
+        if (field != null) {
+            out.writeInt(field.length);
+            out.write(field);
+        }
+    }
+
+    /**
+     * Compress an encoded value.
+     * @param value the UTF-8 encoded value, which is not modified
+     * @return the compressed bytes, or null if compressing would not make the value smaller
+     */
+    static ByteBuffer deflate(ByteBuffer value) {
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setInput(value.duplicate());
+        deflater.finish();
+
+        byte out[] = new byte[value.remaining() - 1];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished()) {
+            return null;
+        }
+        return ByteBuffer.wrap(Arrays.copyOf(out, length));
+    }
+
+    /**
+     * Write a message as a single frame. A stream only takes arrays, so a
+     * shared direct value buffer is copied into one on its way out; sockets
+     * accepted by the blocking {@link SocketServer} have no channel, and so
+     * always take this path. Only {@link #write(KVMessage, GatheringByteChannel)}
+     * sends such a buffer without copying it.
+     * @throws KVException if the message is incomplete
+     * @throws IOException if the stream fails
+     */
+    public static void write(KVMessage msg, OutputStream out) throws KVException, IOException {
+        WritableByteChannel channel = null;
+        for (ByteBuffer buf : encodeBuffers(msg)) {
+            if (buf.hasArray()) {
+                out.write(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            } else {
+                if (channel == null) {
+                    channel = Channels.newChannel(out);
+                }
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Write a message as a single frame with gathering writes, so that a
+     * shared value buffer goes to the channel without being copied.
+     * @param channel a channel in blocking mode
+     * @throws KVException if the message is incomplete
+     * @throws IOException if the channel fails
+     */
+    public static void write(KVMessage msg, GatheringByteChannel channel) throws KVException, IOException {
+        ByteBuffer buffers[] = encodeBuffers(msg);
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Read a single frame from a stream positioned at its magic.
+     * @return the decoded message
+     * @throws KVException if the frame does not describe a valid message
+     * @throws IOException if the stream fails or ends part way through the frame
+     */
+    public static KVMessage read(InputStream input) throws KVException, IOException {
+        DataInputStream in = new DataInputStream(input);
+        byte header[] = new byte[HEADER_SIZE];
+        in.readFully(header);
+        ByteBuffer buf = ByteBuffer.wrap(header);
+        int bodyLength = checkHeader(buf);
+
+        byte body[] = new byte[bodyLength];
+        in.readFully(body);
+        return decode(header[3], header[4], ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Determine the length of the frame starting at the buffer's position,
+     * without modifying the buffer.
+     * @return the length of the frame, or -1 if it has not been fully received
+     * @throws IOException if the header is invalid
+     */
+    public static int frameLength(ByteBuffer buf) throws IOException {
+        if (buf.remaining() < HEADER_SIZE) {
+            return -1;
+        }
+        int length = HEADER_SIZE + checkHeader(buf.duplicate());
+        return buf.remaining() < length ? -1 : length;
+    }
+
+    /**
+     * Decode a complete frame.
+     * @param frame buffer holding exactly one frame
+     * @throws KVException if the frame does not describe a valid message
+     * @throws IOException if the header is invalid
+     */
+    public static KVMessage decode(ByteBuffer frame) throws KVException, IOException {
+        int start = frame.position();
+        checkHeader(frame.duplicate());
+        ByteBuffer body = frame.duplicate();
+        body.position(start + HEADER_SIZE);
+        return decode(frame.get(start + 3), frame.get(start + 4), body.slice());
+    }
+
+    private static int checkHeader(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        if ((buf.getShort(start) & 0xFFFF) != MAGIC) {
+            throw new StreamCorruptedException("invalid frame magic");
+        }
+        if (buf.get(start + 2) != VERSION) {
+            throw new StreamCorruptedException("unsupported frame version");
+        }
+        int bodyLength = buf.getInt(start + 5);
+        if (bodyLength < 0 || bodyLength > KVMessageFrameDecoder.MAX_FRAME_SIZE - HEADER_SIZE) {
+            throw new StreamCorruptedException("frame too large: " + bodyLength);
+        }
+        return bodyLength;
+    }
+
+    private static KVMessage decode(byte type, byte flags, ByteBuffer body) throws KVException {
+        if (type < 0 || type >= TYPES.length) {
+            throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+        }
+        KVMessage msg = new KVMessage(TYPES[type]);
+        msg.setFormat(KVMessage.Format.BINARY);
+        msg.setAcceptsCompression((flags & ACCEPTS_DEFLATE) != 0);
+        // Bytes every compressed value in the frame may inflate to between them
+        int budget[] = {KVMessageFrameDecoder.MAX_FRAME_SIZE};
+        try {
+            if ((flags & HAS_ID) != 0) {
+                msg.setId(getField(body));
+            }
+            if ((flags & HAS_KEY) != 0) {
+                msg.setKey(getField(body));
+            }
+            if ((flags & HAS_VALUE) != 0) {
+                msg.setValue((flags & VALUE_DEFLATED) != 0 ? inflate(body, budget) : getField(body));
+            }
+            if ((flags & HAS_MESSAGE) != 0) {
+                msg.setMessage(getField(body));
+            }
+            if ((flags & HAS_PAIRS) != 0) {
+                msg.setPairs(decodePairs(body, budget));
+            }
+            if ((flags & HAS_SCAN) != 0) {
+                decodeScan(body, msg);
+            }
+        } catch (EOFException | DataFormatException e) {
+            throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+        }
+        if (body.hasRemaining()) {
+            throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+        }
+
+        try {
+            msg.checkFields();
+        } catch (KVException e) {
+            throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+        }
+        return msg;
+    }
+
+    private static int typeCode(String msgType) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(msgType)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException(msgType);
+    }
+
+    private static byte[] utf8(String s) {
+        return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void putField(ByteBuffer frame, byte field[]) {
+        if (field != null) {
+            frame.putInt(field.length);
+            frame.put(field);
+        }
+    }
+
+    private static List<KVPair> decodePairs(ByteBuffer body, int budget[]) throws EOFException, DataFormatException {
+        if (body.remaining() < 4) {
+            throw new EOFException();
+        }
+        int count = body.getInt();
+        // Each pair takes at least its flags byte
+        if (count < 0 || count > body.remaining()) {
+            throw new EOFException();
+        }
+        List<KVPair> pairs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            if (!body.hasRemaining()) {
+                throw new EOFException();
+            }
+            int flags = body.get();
+            KVPair pair = new KVPair(null);
+            if ((flags & HAS_KEY) != 0) {
+                pair.setKey(getField(body));
+            }
+            if ((flags & HAS_VALUE) != 0) {
+                pair.setValue((flags & VALUE_DEFLATED) != 0 ? inflate(body, budget) : getField(body));
+            }
+            if ((flags & HAS_MESSAGE) != 0) {
+                pair.setMessage(getField(body));
+            }
+            pairs.add(pair);
+        }
+        return pairs;
+    }
+
+    private static void decodeScan(ByteBuffer body, KVMessage msg) throws EOFException {
+        if (body.remaining() < 5) {
+            throw new EOFException();
+        }
+        msg.setLimit(body.getInt());
+        int flags = body.get();
+        if ((flags & SCAN_HAS_END_KEY) != 0) {
+            msg.setEndKey(getField(body));
+        }
+        if ((flags & SCAN_HAS_PREFIX) != 0) {
+            msg.setPrefix(getField(body));
+        }
+    }
+
+    /**
+     * Read a compressed value field. Inflating stops, and the value is refused,
+     * as soon as it grows past {@link #MAX_INFLATED_VALUE_SIZE}, so that a small
+     * frame cannot make the reader allocate more than a value ever needs.
+     * @param budget bytes left for the frame's compressed values to inflate to,
+     * shared by all of them and reduced by this one's size; the frame is refused
+     * once they would take more
+     */
+    private static String inflate(ByteBuffer body, int budget[]) throws EOFException, DataFormatException {
+        if (body.remaining() < 4) {
+            throw new EOFException();
+        }
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new EOFException();
+        }
+
+        Inflater inflater = INFLATER.get();
+        inflater.reset();
+        inflater.setInput(body.array(), body.arrayOffset() + body.position(), length);
+        body.position(body.position() + length);
+
+        int limit = Math.min(MAX_INFLATED_VALUE_SIZE, budget[0]);
+        // One byte of room past the limit shows whether the value goes over it
+        int capacity = limit + 1;
+        byte out[] = new byte[Math.min(Math.max(length * 4, 1024), capacity)];
+        int size = 0;
+        while (!inflater.finished()) {
+            if (size == out.length) {
+                out = Arrays.copyOf(out, Math.min(out.length * 2, capacity));
+            }
+            int n = inflater.inflate(out, size, out.length - size);
+            if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                throw new DataFormatException("truncated value");
+            }
+            size += n;
+            if (size > limit) {
+                throw new DataFormatException("value too large");
+            }
+        }
+        budget[0] -= size;
+        return new String(out, 0, size, StandardCharsets.UTF_8);
+    }
+
+    private static String getField(ByteBuffer body) throws EOFException {
+        if (body.remaining() < 4) {
+            throw new EOFException();
+        }
+        int length = body.getInt();
+        if (length < 0 || length > body.remaining()) {
+            throw new EOFException();
+        }
+        String field = new String(body.array(), body.arrayOffset() + body.position(), length, StandardCharsets.UTF_8);
+        body.position(body.position() + length);
+        return field;
+    }
+}
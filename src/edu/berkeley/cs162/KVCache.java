@@ -42,6 +42,8 @@ import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
@@ -54,6 +56,13 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
  * If a set is full and another entry is added, an entry is dropped based on the eviction policy.
  */
 public class KVCache implements KeyValueInterface {
+    /**
+     * Values at least this many characters long keep their UTF-8 encoding
+     * alongside them while cached, so repeated reads can be sent without
+     * encoding them again.
+     */
+    static final int ENCODED_VALUE_THRESHOLD = 16 * 1024;
+
     private int numSets = 100;
     private int maxElemsPerSet = 10;
 
@@ -81,7 +90,7 @@ public class KVCache implements KeyValueInterface {
         }
 
         public void put(String key, String value) {
-            if (map.size() == maxElemsPerSet) {
+            if (map.size() == maxElemsPerSet && !map.containsKey(key)) {
                 String keys[] = new String[maxElemsPerSet];
                 keys = map.keySet().toArray(keys);
 
@@ -95,6 +104,8 @@ public class KVCache implements KeyValueInterface {
                         map.remove(curKey);
                         break;
                     }
+                    // Second chance: spare it this time round
+                    curEntry.referenced = false;
                     keyPtr++;
                 }
             }
@@ -110,6 +121,38 @@ public class KVCache implements KeyValueInterface {
             return null;
         }
 
+        public ByteBuffer getEncoded(String key, String value) {
+            SetEntry entry = map.get(key);
+            if (entry == null || entry.value != value) {
+                return null;
+            }
+            if (entry.encoded == null) {
+                byte bytes[] = value.getBytes(StandardCharsets.UTF_8);
+                ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+                buf.put(bytes).flip();
+                entry.encoded = buf.asReadOnlyBuffer();
+            }
+            return entry.encoded.duplicate();
+        }
+
+        public ByteBuffer getDeflated(String key, String value) {
+            ByteBuffer encoded = getEncoded(key, value);
+            if (encoded == null) {
+                return null;
+            }
+            SetEntry entry = map.get(key);
+            if (!entry.deflateTried) {
+                ByteBuffer deflated = KVBinaryCodec.deflate(encoded);
+                if (deflated != null) {
+                    ByteBuffer buf = ByteBuffer.allocateDirect(deflated.remaining());
+                    buf.put(deflated).flip();
+                    entry.deflated = buf.asReadOnlyBuffer();
+                }
+                entry.deflateTried = true;
+            }
+            return entry.deflated == null ? null : entry.deflated.duplicate();
+        }
+
         public void del(String key) {
             if (map.containsKey(key)) {
                 map.remove(key);
@@ -127,6 +170,9 @@ public class KVCache implements KeyValueInterface {
     private class SetEntry {
         boolean referenced;
         String value;
+        ByteBuffer encoded = null;
+        ByteBuffer deflated = null;
+        boolean deflateTried = false;
 
         public SetEntry(String value) {
             this.referenced = false;
@@ -194,6 +240,35 @@ public class KVCache implements KeyValueInterface {
         AutoGrader.agCachePutFinished(key, value);
     }
 
+    /**
+     * Retrieves the UTF-8 encoding of a large cached value, encoding it the
+     * first time it is asked for. Does not count as a use of the entry.
+     * Assumes the corresponding set has already been locked for writing.
+     * @param key the key whose value is wanted
+     * @param value the value the caller expects the key to hold
+     * @return a read-only buffer holding the encoded value, or null if the value
+     * is small or the key no longer holds that value
+     */
+    public ByteBuffer getEncoded(String key, String value) {
+        if (value == null || value.length() < ENCODED_VALUE_THRESHOLD) {
+            return null;
+        }
+        return cacheSets.get(getSetId(key)).getEncoded(key, value);
+    }
+
+    /**
+     * As {@link #getEncoded(String, String)}, but compressed for a peer that
+     * accepts compressed values. Compressed once and then kept with the entry.
+     * @return a read-only buffer holding the compressed value, or null if the
+     * value is small, does not compress, or the key no longer holds that value
+     */
+    public ByteBuffer getDeflated(String key, String value) {
+        if (value == null || value.length() < ENCODED_VALUE_THRESHOLD) {
+            return null;
+        }
+        return cacheSets.get(getSetId(key)).getDeflated(key, value);
+    }
+
     /**
      * Removes an entry from this cache.
      * Assumes the corresponding set has already been locked for writing.
@@ -229,7 +304,7 @@ public class KVCache implements KeyValueInterface {
      * @param key
      * @return set of the key
      */
-    private int getSetId(String key) {
+    int getSetId(String key) {
         return Math.abs(key.hashCode()) % numSets;
     }
 
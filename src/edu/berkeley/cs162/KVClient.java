@@ -34,6 +34,13 @@ package edu.berkeley.cs162;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 
 /**
@@ -45,16 +52,53 @@ public class KVClient implements KeyValueInterface {
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
 
+    private static final int POOL_SIZE = 8;
+    private static final long POOL_MAX_IDLE = 20000;
+    private static final long POOL_CHECKOUT_TIMEOUT = 20000;
+
     private String server = null;
     private int port = 0;
+    private KVConnectionPool pool = null;
+    private boolean preferBinary = true;
+    /**
+     * Whether the server has shown that it understands the binary format; null until the first response
+     */
+    private volatile Boolean serverSpeaksBinary = null;
+    private boolean compression = true;
+    /**
+     * Whether the server has shown that it can read compressed values
+     */
+    private volatile boolean serverInflates = false;
 
     /**
      * @param server is the DNS reference to the Key-Value server
      * @param port is the port on which the Key-Value server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, false);
+    }
+
+    /**
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param keepAlive if true, requests are sent over a default sized pool of
+     * reused connections instead of connecting once per request
+     */
+    public KVClient(String server, int port, boolean keepAlive) {
+        this(server, port, keepAlive ? new KVConnectionPool(server, port, POOL_SIZE, POOL_MAX_IDLE, POOL_CHECKOUT_TIMEOUT) : null);
+    }
+
+    /**
+     * A client that sends requests over connections from the given pool.
+     * Such a client may be shared by any number of threads.
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param pool connections to the same server, or null to connect once per request
+     */
+    public KVClient(String server, int port, KVConnectionPool pool) {
         this.server = server;
         this.port = port;
+        this.pool = pool;
     }
 
     private Socket connectHost() throws KVException {
@@ -79,7 +123,278 @@ public class KVClient implements KeyValueInterface {
         }
     }
 
-    public void put(String key, String value) throws KVException {
+    /**
+     * Choose whether requests are sent in the compact binary format when the
+     * server supports it (the default) or always as XML.
+     * @param enabled true to use the binary format
+     */
+    public void setBinaryProtocol(boolean enabled) {
+        this.preferBinary = enabled;
+    }
+
+    /**
+     * Choose whether large values this client sends in binary requests are
+     * compressed once the server has shown it can read them (the default).
+     * Binary requests always tell the server it may compress values it sends back.
+     * @param enabled true to compress large values
+     */
+    public void setCompression(boolean enabled) {
+        this.compression = enabled;
+    }
+
+    /**
+     * Close the pooled connections, if there are any.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * Send a request and wait for its response. Until the server has answered
+     * once, requests are sent in the binary format; a server that does not
+     * understand it replies with an XML error, after which this client falls
+     * back to XML and repeats the request.
+     * @param message the request
+     * @return the response from the server
+     * @throws KVException if there is a network error
+     */
+    private KVMessage sendRecv(KVMessage message) throws KVException {
+        boolean probing = preferBinary && serverSpeaksBinary != Boolean.FALSE;
+        message.setFormat(probing ? KVMessage.Format.BINARY : KVMessage.Format.XML);
+        message.setAcceptsCompression(compression && serverInflates);
+
+        KVMessage response = roundTrip(message);
+        if (response.acceptsCompression()) {
+            serverInflates = true;
+        }
+        if (probing) {
+            if (response.getFormat() == KVMessage.Format.XML) {
+                serverSpeaksBinary = false;
+                message.setFormat(KVMessage.Format.XML);
+                return roundTrip(message);
+            }
+            serverSpeaksBinary = true;
+        }
+        return response;
+    }
+
+    private KVMessage.Format negotiatedFormat() {
+        return preferBinary && serverSpeaksBinary == Boolean.TRUE ? KVMessage.Format.BINARY : KVMessage.Format.XML;
+    }
+
+    private KVMessage roundTrip(KVMessage message) throws KVException {
+        return withConnection(isRetryable(message), sock -> {
+            KVMessage response = exchange(sock, message);
+            if (response.getFormat() != message.getFormat()) {
+                // The server could not frame the request, so the connection is out of step
+                closeHost(sock);
+            }
+            return response;
+        });
+    }
+
+    /**
+     * Something done over a single connection to the server.
+     */
+    private interface Conversation<T> {
+        T run(Socket sock) throws KVException;
+    }
+
+    /**
+     * Run a conversation over a pooled connection, or a new one if there is no pool.
+     * A network error on a connection that had sat idle in the pool is taken to
+     * mean the server timed it out, and the conversation is retried on another.
+     * The error may instead have come after the server ran the requests, so
+     * only conversations that are safe to repeat are retried.
+     * @param retryable whether running the conversation twice has the same effect as once
+     */
+    private <T> T withConnection(boolean retryable, Conversation<T> conversation) throws KVException {
+        if (pool == null) {
+            Socket sock = connectHost();
+            try {
+                return conversation.run(sock);
+            } finally {
+                closeHost(sock);
+            }
+        }
+
+        KVConnectionPool.Connection conn = pool.checkout();
+        T result;
+        try {
+            result = conversation.run(conn.getSocket());
+        } catch (KVException e) {
+            pool.discard(conn);
+            if (retryable && conn.isReused() && KVMessage.NETWORK_ERR.equals(e.getMsg().getMessage())) {
+                return withConnection(retryable, conversation);
+            }
+            throw e;
+        }
+        pool.release(conn);
+        return result;
+    }
+
+    /**
+     * A repeated delete reports that the key does not exist, even though the
+     * first one removed it, so deletes are never sent twice.
+     */
+    private static boolean isRetryable(KVMessage message) {
+        return !message.getMsgType().equals("delreq") && !message.getMsgType().equals("multidelreq");
+    }
+
+    private KVMessage exchange(Socket sock, KVMessage message) throws KVException {
+        if (!KVLog.sample()) {
+            message.sendMessage(sock);
+            return new KVMessage(sock);
+        }
+
+        long start = System.nanoTime();
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Sending Message:\n%s", KVLog.pretty(message));
+        }
+        message.sendMessage(sock);
+
+        KVMessage response = new KVMessage(sock);
+        KVLog.request(message, response, System.nanoTime() - start);
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Received Response:\n%s", KVLog.pretty(response));
+        }
+        return response;
+    }
+
+    /**
+     * Start a batch of requests that will be pipelined over a single connection.
+     * @return an empty pipeline
+     */
+    public Pipeline pipeline() {
+        return new Pipeline();
+    }
+
+    /**
+     * A batch of requests that are sent back to back, without waiting for
+     * responses in between. Each request is tagged with an id so that the
+     * responses can be matched up even if the server completes them out of order.
+     * The server must keep connections open between requests, as NioSocketServer
+     * and a keep-alive KVClientHandler do.
+     */
+    public class Pipeline {
+        private final List<KVMessage> requests = new ArrayList<>();
+
+        private Pipeline() {
+        }
+
+        public Pipeline put(String key, String value) throws KVException {
+            checkPut(key, value);
+            KVMessage message = new KVMessage("putreq");
+            message.setKey(key);
+            message.setValue(value);
+            return add(message);
+        }
+
+        public Pipeline get(String key) throws KVException {
+            KVMessage message = new KVMessage("getreq");
+            message.setKey(key);
+            return add(message);
+        }
+
+        public Pipeline del(String key) throws KVException {
+            KVMessage message = new KVMessage("delreq");
+            message.setKey(key);
+            return add(message);
+        }
+
+        private Pipeline add(KVMessage message) {
+            message.setId(Integer.toString(requests.size()));
+            message.setFormat(negotiatedFormat());
+            message.setAcceptsCompression(compression && serverInflates);
+            requests.add(message);
+            return this;
+        }
+
+        /**
+         * Send every queued request and wait for all of the responses. Errors
+         * reported by the server for individual requests are returned as
+         * responses rather than thrown.
+         * @return the responses, in the order the requests were queued
+         * @throws KVException if there is a network error
+         */
+        public List<KVMessage> execute() throws KVException {
+            boolean retryable = requests.stream().allMatch(KVClient::isRetryable);
+            List<KVMessage> responses = withConnection(retryable, sock -> exchangeAll(sock, requests));
+            if (!responses.isEmpty() && responses.get(0).acceptsCompression()) {
+                serverInflates = true;
+            }
+            return responses;
+        }
+    }
+
+    /**
+     * Write all of the requests from a separate thread while reading the
+     * responses on this one, so that neither side can stall the other with
+     * full socket buffers.
+     */
+    private List<KVMessage> exchangeAll(Socket sock, List<KVMessage> requests) throws KVException {
+        KVException sendFailure[] = new KVException[1];
+        Thread sender = new Thread(() -> {
+            try {
+                for (KVMessage request : requests) {
+                    request.sendMessage(sock);
+                }
+            } catch (KVException e) {
+                sendFailure[0] = e;
+                try {
+                    sock.close();
+                } catch (IOException e1) {
+                    // Unblocks the reader
+                }
+            }
+        });
+        sender.start();
+
+        KVMessage responses[] = new KVMessage[requests.size()];
+        try {
+            for (int received = 0; received < responses.length; received++) {
+                KVMessage response = new KVMessage(sock);
+                int index = indexOf(response.getId(), responses.length);
+                if (index < 0 || responses[index] != null) {
+                    throw new KVException(new KVMessage("resp", "Network Error: Unexpected response"));
+                }
+                responses[index] = response;
+            }
+        } catch (KVException e) {
+            try {
+                sock.close();
+            } catch (IOException e1) {
+                // Unblocks the sender
+            }
+            // The sender's failure, if it had one, is what broke the exchange; it is only visible once the sender is done
+            join(sender);
+            throw sendFailure[0] != null ? sendFailure[0] : e;
+        } finally {
+            join(sender);
+        }
+        return Arrays.asList(responses);
+    }
+
+    private static void join(Thread thread) {
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static int indexOf(String id, int count) {
+        try {
+            int index = Integer.parseInt(id);
+            return index < count ? index : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    static void checkPut(String key, String value) throws KVException {
         if (key.length() > MAX_KEY_SIZE) {
             throw new KVException(new KVMessage("resp", "Key Error: Oversized Key"));
         }
@@ -92,77 +407,261 @@ public class KVClient implements KeyValueInterface {
         if (value.length() == 0) {
             throw new KVException(new KVMessage("resp", "Value Error: Undersized Values"));
         }
+    }
 
-        Socket server = connectHost();
+    public void put(String key, String value) throws KVException {
+        checkPut(key, value);
 
         KVMessage message = new KVMessage("putreq");
         message.setKey(key);
         message.setValue(value);
 
-        System.out.println("Sending Message:");
-        System.out.println(XmlFormatter.prettyFormat(message.toXML()));
-        System.out.println();
+        KVMessage response = sendRecv(message);
+
+        if (!response.getMessage().equals("Success")) {
+            throw new KVException(response);
+        }
+    }
+
+    public String get(String key) throws KVException {
+        KVMessage message = new KVMessage("getreq");
+        message.setKey(key);
 
-        message.sendMessage(server);
+        KVMessage response = sendRecv(message);
 
-        KVMessage response = new KVMessage(server);
+        return response.getValue();
+    }
 
-        System.out.println("Received Response:");
-        System.out.println(XmlFormatter.prettyFormat(response.toXML()));
-        System.out.println();
+    public void del(String key) throws KVException {
+        KVMessage message = new KVMessage("delreq");
+        message.setKey(key);
 
-        closeHost(server);
+        KVMessage response = sendRecv(message);
 
         if (!response.getMessage().equals("Success")) {
             throw new KVException(response);
         }
     }
 
-    public String get(String key) throws KVException {
-        Socket server = connectHost();
+    /**
+     * Look up many keys with as few requests as possible. Keys whose values
+     * did not fit in a response are asked for again.
+     * @param keys the keys to look up
+     * @return the values found, by key, in the order asked for; keys that could not be read are left out
+     * @throws KVException if there is a network error or the server does not support batches
+     */
+    public Map<String, String> multiGet(Collection<String> keys) throws KVException {
+        Map<String, String> values = new LinkedHashMap<>();
+        List<String> remaining = new ArrayList<>(new LinkedHashSet<>(keys));
+        while (!remaining.isEmpty()) {
+            List<KVPair> pairs = new ArrayList<>(remaining.size());
+            for (String key : remaining) {
+                pairs.add(new KVPair(key));
+            }
+
+            List<String> retry = new ArrayList<>();
+            for (KVPair result : sendBatch("multigetreq", pairs)) {
+                if (result.getValue() != null) {
+                    values.put(result.getKey(), result.getValue());
+                } else if (KVMessage.BATCH_OVERFLOW.equals(result.getMessage())) {
+                    retry.add(result.getKey());
+                }
+            }
+            if (retry.size() == remaining.size()) {
+                throw new KVException(new KVMessage("resp", KVMessage.BATCH_OVERFLOW));
+            }
+            remaining = retry;
+        }
+        return values;
+    }
 
-        KVMessage message = new KVMessage("getreq");
-        message.setKey(key);
+    /**
+     * Store many entries, in requests of at most MAX_BATCH_VALUE_SIZE value
+     * characters each. Every valid entry is stored even if others fail.
+     * @param entries the keys with the values to store
+     * @throws KVException for the first entry that could not be stored, or if there is a network error
+     */
+    public void multiPut(Map<String, String> entries) throws KVException {
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            checkPut(entry.getKey(), entry.getValue());
+        }
+
+        KVException failure = null;
+        List<KVPair> batch = new ArrayList<>();
+        long batchSize = 0;
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            if (!batch.isEmpty() && batchSize + entry.getValue().length() > KVMessage.MAX_BATCH_VALUE_SIZE) {
+                failure = firstFailure(failure, sendBatch("multiputreq", batch));
+                batch = new ArrayList<>();
+                batchSize = 0;
+            }
+            batch.add(new KVPair(entry.getKey(), entry.getValue()));
+            batchSize += entry.getValue().length();
+        }
+        if (!batch.isEmpty()) {
+            failure = firstFailure(failure, sendBatch("multiputreq", batch));
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-        System.out.println("Sending Message:");
-        System.out.println(XmlFormatter.prettyFormat(message.toXML()));
-        System.out.println();
+    /**
+     * Remove many keys in a single request. Every key that exists is removed even if others fail.
+     * @param keys the keys to remove
+     * @throws KVException for the first key that could not be removed, or if there is a network error
+     */
+    public void multiDel(Collection<String> keys) throws KVException {
+        if (keys.isEmpty()) {
+            return;
+        }
+        List<KVPair> pairs = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            pairs.add(new KVPair(key));
+        }
 
-        message.sendMessage(server);
+        KVException failure = firstFailure(null, sendBatch("multidelreq", pairs));
+        if (failure != null) {
+            throw failure;
+        }
+    }
 
-        KVMessage response = new KVMessage(server);
+    /**
+     * One page of a scan: entries in key order, and where the next page
+     * starts if there may be more.
+     */
+    public static class ScanPage {
+        private final List<KVPair> entries;
+        private final String cursor;
+        private final String endKey;
+        private final String prefix;
+        private final int limit;
+
+        private ScanPage(List<KVPair> entries, String cursor, String endKey, String prefix, int limit) {
+            this.entries = entries;
+            this.cursor = cursor;
+            this.endKey = endKey;
+            this.prefix = prefix;
+            this.limit = limit;
+        }
 
-        System.out.println("Received Response:");
-        System.out.println(XmlFormatter.prettyFormat(response.toXML()));
-        System.out.println();
+        /**
+         * @return the entries, each with a key and value, in key order
+         */
+        public List<KVPair> getEntries() {
+            return entries;
+        }
 
-        closeHost(server);
+        /**
+         * @return the key the next page starts from, or null if this is the last page
+         */
+        public String getCursor() {
+            return cursor;
+        }
 
-        return response.getValue();
+        public boolean hasMore() {
+            return cursor != null;
+        }
     }
 
-    public void del(String key) throws KVException {
-        Socket server = connectHost();
-
-        KVMessage message = new KVMessage("delreq");
-        message.setKey(key);
+    /**
+     * Read the entries whose keys are in a range, in key order, a page at a
+     * time. The server may return fewer than limit entries, and at most
+     * MAX_SCAN_LIMIT, even when more follow; use {@link #nextPage(ScanPage)}.
+     * @param from the least key to return, or null to start at the first key
+     * @param to the key to stop before, or null for no upper bound
+     * @param limit most entries to return
+     * @return the first page
+     * @throws KVException if there is a network error or the server cannot scan
+     */
+    public ScanPage scan(String from, String to, int limit) throws KVException {
+        return sendScan(from, to, null, limit);
+    }
 
-        System.out.println("Sending Message:");
-        System.out.println(XmlFormatter.prettyFormat(message.toXML()));
-        System.out.println();
+    /**
+     * Read the entries whose keys start with a prefix, in key order, a page at a time.
+     * @param prefix the prefix every key returned starts with
+     * @param limit most entries to return
+     * @return the first page
+     * @throws KVException if there is a network error or the server cannot scan
+     */
+    public ScanPage scanPrefix(String prefix, int limit) throws KVException {
+        return sendScan(null, null, prefix, limit);
+    }
 
-        message.sendMessage(server);
+    /**
+     * Continue a scan where a page left off. Changes made in between are
+     * seen if they come after the cursor.
+     * @param page the page last returned
+     * @return the following page, which is empty if there was none
+     * @throws KVException if there is a network error
+     */
+    public ScanPage nextPage(ScanPage page) throws KVException {
+        if (!page.hasMore()) {
+            return new ScanPage(new ArrayList<>(), null, page.endKey, page.prefix, page.limit);
+        }
+        return sendScan(page.cursor, page.endKey, page.prefix, page.limit);
+    }
 
-        KVMessage response = new KVMessage(server);
+    /**
+     * Read every entry whose key starts with a prefix, in as few requests as possible.
+     * @param prefix the prefix every key returned starts with
+     * @return the values found, by key, in key order
+     * @throws KVException if there is a network error or the server cannot scan
+     */
+    public Map<String, String> getPrefix(String prefix) throws KVException {
+        Map<String, String> values = new LinkedHashMap<>();
+        ScanPage page = scanPrefix(prefix, KVMessage.MAX_SCAN_LIMIT);
+        while (true) {
+            for (KVPair entry : page.getEntries()) {
+                values.put(entry.getKey(), entry.getValue());
+            }
+            if (!page.hasMore()) {
+                return values;
+            }
+            page = nextPage(page);
+        }
+    }
 
-        System.out.println("Received Response:");
-        System.out.println(XmlFormatter.prettyFormat(response.toXML()));
-        System.out.println();
+    private ScanPage sendScan(String from, String to, String prefix, int limit) throws KVException {
+        if (limit <= 0) {
+            throw new KVException(new KVMessage("resp", "Scan Error: Limit must be positive"));
+        }
+        KVMessage message = new KVMessage("scanreq");
+        message.setKey(from);
+        message.setEndKey(to);
+        message.setPrefix(prefix);
+        message.setLimit(limit);
+
+        KVMessage response = sendRecv(message);
+        if (!response.getMsgType().equals("scanresp")) {
+            // Refused, by a server whose store cannot scan or that does not know scans
+            throw new KVException(response);
+        }
+        return new ScanPage(response.getPairs(), response.getKey(), to, prefix, limit);
+    }
 
-        closeHost(server);
+    private List<KVPair> sendBatch(String msgType, List<KVPair> pairs) throws KVException {
+        KVMessage message = new KVMessage(msgType);
+        message.setPairs(pairs);
 
-        if (!response.getMessage().equals("Success")) {
+        KVMessage response = sendRecv(message);
+        if (!response.getMsgType().equals("multiresp") || response.getPairs().size() != pairs.size()) {
+            // The whole batch was refused, most likely by a server without batch support
             throw new KVException(response);
         }
+        return response.getPairs();
+    }
+
+    private static KVException firstFailure(KVException failure, List<KVPair> results) throws KVException {
+        if (failure != null) {
+            return failure;
+        }
+        for (KVPair result : results) {
+            if (!"Success".equals(result.getMessage())) {
+                return new KVException(new KVMessage("resp", result.getMessage()));
+            }
+        }
+        return null;
     }
 }
@@ -32,27 +32,100 @@ package edu.berkeley.cs162;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * It uses a threadpool to ensure that none of it's methods are blocking.
  *
  */
-public class KVClientHandler implements NetworkHandler {
+public class KVClientHandler implements NetworkHandler, MessageHandler {
     private KVServer kvServer = null;
+    /**
+     * Reply to requests that arrive while the work queue is full
+     */
+    public static final String SERVER_BUSY = "Server Busy";
+
+    /**
+     * Milliseconds to wait for the request on a connection being turned away
+     */
+    private static final int REJECT_READ_TIMEOUT = 100;
+    /**
+     * Most turned away connections waiting to be answered; any more are closed unanswered
+     */
+    private static final int REJECT_QUEUE_CAPACITY = 64;
+
+    /**
+     * Answers turned away connections, so that waiting for their requests
+     * never holds up the accept thread. Its thread is only started once a
+     * connection is turned away, and stops again when there are none.
+     */
+    private final ThreadPoolExecutor rejecter = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(REJECT_QUEUE_CAPACITY), r -> {
+                Thread t = new Thread(r, "KVClientHandler-rejecter");
+                t.setDaemon(true);
+                return t;
+            });
+
     private ThreadPool threadpool = null;
+    private int keepAliveTimeout = 0;
 
     public KVClientHandler(KVServer kvServer) {
-        initialize(kvServer, 5);
+        initialize(kvServer, 5, 0);
     }
 
     public KVClientHandler(KVServer kvServer, int connections) {
-        initialize(kvServer, connections);
+        initialize(kvServer, connections, 0);
     }
 
-    private void initialize(KVServer kvServer, int connections) {
+    /**
+     * @param kvServer the server requests are made against
+     * @param connections number of worker threads; 0 for none, when a
+     * subclass runs work itself by overriding {@link #dispatch(Runnable)}
+     * @param keepAliveTimeout if positive, each connection is kept open for further
+     * requests until it has been idle for this many milliseconds; otherwise a
+     * connection carries a single request
+     */
+    public KVClientHandler(KVServer kvServer, int connections, int keepAliveTimeout) {
+        initialize(kvServer, connections, keepAliveTimeout);
+    }
+
+    /**
+     * @param kvServer the server requests are made against
+     * @param connections number of worker threads
+     * @param keepAliveTimeout as for {@link #KVClientHandler(KVServer, int, int)}
+     * @param queueCapacity most connections or requests waiting for a worker
+     * @param policy whether work arriving at a full queue is answered with
+     * {@link #SERVER_BUSY} or waits for room
+     */
+    public KVClientHandler(KVServer kvServer, int connections, int keepAliveTimeout,
+                           int queueCapacity, ThreadPool.RejectionPolicy policy) {
+        initialize(kvServer, 0, keepAliveTimeout);
+        threadpool = new ThreadPool(connections, queueCapacity, policy);
+    }
+
+    private void initialize(KVServer kvServer, int connections, int keepAliveTimeout) {
         this.kvServer = kvServer;
-        threadpool = new ThreadPool(connections);
+        this.keepAliveTimeout = keepAliveTimeout;
+        rejecter.allowCoreThreadTimeOut(true);
+        if (connections > 0) {
+            threadpool = new ThreadPool(connections);
+        }
+    }
+
+    /**
+     * @return the pool servicing requests, for its queue gauges; null if a subclass runs work itself
+     */
+    public ThreadPool getThreadPool() {
+        return threadpool;
     }
 
 
@@ -61,54 +134,51 @@ public class KVClientHandler implements NetworkHandler {
 
         @Override
         public void run() {
-            System.out.println("Client Handler: Handling Client Request...");
-            KVMessage message, response;
             try {
-                response = new KVMessage("resp");
-            } catch (KVException e) {
-                response = e.getMsg();
-                try {
-                    response.sendMessage(client);
-                    return;
-                } catch (KVException e1) {
+                if (keepAliveTimeout <= 0) {
+                    serve();
                     return;
                 }
+                client.setSoTimeout(keepAliveTimeout);
+                while (serve()) {
+                    // Keep servicing requests until the client leaves or goes idle
+                }
+            } catch (SocketException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
+        }
+
+        /**
+         * Service a single request on the connection.
+         * @return false if the connection has been closed, has timed out or is otherwise unusable
+         */
+        private boolean serve() {
+            KVMessage message, response;
 
             try {
                 message = new KVMessage(client);
-                System.out.println("Received Message:");
-                System.out.println(XmlFormatter.prettyFormat(message.toXML()));
-                String msgType = message.getMsgType();
-
-                switch (msgType) {
-                    case "getreq":
-                        response.setKey(message.getKey());
-                        response.setValue(kvServer.get(message.getKey()));
-                        break;
-                    case "putreq":
-                        kvServer.put(message.getKey(), message.getValue());
-                        response.setMessage("Success");
-                        break;
-                    case "delreq":
-                        kvServer.del(message.getKey());
-                        response.setMessage("Success");
-                        break;
-                    default:
-                        throw new KVException(new KVMessage("resp", "Message Format Incorrect"));
-                }
-
+                response = process(message);
             } catch (KVException e) {
+                if (keepAliveTimeout > 0 && KVMessage.NETWORK_ERR.equals(e.getMsg().getMessage())) {
+                    return false;
+                }
                 response = e.getMsg();
+                KVLog.log(KVLog.Level.DEBUG, "Unreadable request from %s: %s", client.getRemoteSocketAddress(), response.getMessage());
             }
 
             try {
-                System.out.println("Sending Response back to Client:");
-                System.out.println(XmlFormatter.prettyFormat(response.toXML()));
                 response.sendMessage(client);
             } catch (KVException e) {
                 e.printStackTrace();
+                return false;
             }
+            return true;
         }
 
         public ClientHandler(Socket client) {
@@ -116,17 +186,208 @@ public class KVClientHandler implements NetworkHandler {
         }
     }
 
+    /**
+     * Service a single request against the KVServer, logging it if it is in the sample.
+     * @param message the request
+     * @return the response to send back to the client
+     */
+    private KVMessage process(KVMessage message) {
+        if (!KVLog.sample()) {
+            return execute(message);
+        }
+        long start = System.nanoTime();
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Received Message:\n%s", KVLog.pretty(message));
+        }
+        KVMessage response = execute(message);
+        KVLog.request(message, response, System.nanoTime() - start);
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Sending Response back to Client:\n%s", KVLog.pretty(response));
+        }
+        return response;
+    }
+
+    private KVMessage execute(KVMessage message) {
+        KVMessage response;
+        try {
+            response = new KVMessage("resp");
+            String msgType = message.getMsgType();
+
+            switch (msgType) {
+                case "getreq":
+                    response.setKey(message.getKey());
+                    response.setValue(kvServer.get(message.getKey()));
+                    if (message.getFormat() == KVMessage.Format.BINARY) {
+                        ByteBuffer deflated = message.acceptsCompression()
+                                ? kvServer.getDeflated(message.getKey(), response.getValue()) : null;
+                        if (deflated != null) {
+                            response.setEncodedValue(deflated, true);
+                        } else {
+                            response.setEncodedValue(kvServer.getEncoded(message.getKey(), response.getValue()), false);
+                        }
+                    }
+                    break;
+                case "putreq":
+                    kvServer.put(message.getKey(), message.getValue());
+                    response.setMessage("Success");
+                    break;
+                case "delreq":
+                    kvServer.del(message.getKey());
+                    response.setMessage("Success");
+                    break;
+                case "multigetreq":
+                    response = new KVMessage("multiresp");
+                    response.setPairs(limitBatch(kvServer.multiGet(keysOf(message.getPairs()))));
+                    break;
+                case "multiputreq":
+                    response = new KVMessage("multiresp");
+                    response.setPairs(kvServer.multiPut(message.getPairs()));
+                    break;
+                case "multidelreq":
+                    response = new KVMessage("multiresp");
+                    response.setPairs(kvServer.multiDel(keysOf(message.getPairs())));
+                    break;
+                case "scanreq":
+                    int limit = Math.min(message.getLimit(), KVMessage.MAX_SCAN_LIMIT);
+                    // One entry more than fits tells whether another page follows
+                    List<KVPair> entries = kvServer.scan(message.getKey(), message.getEndKey(), message.getPrefix(), limit + 1);
+                    response = new KVMessage("scanresp");
+                    page(entries, limit, response);
+                    break;
+                default:
+                    throw new KVException(new KVMessage("resp", "Message Format Incorrect"));
+            }
+        } catch (KVException e) {
+            response = e.getMsg();
+        }
+        response.setId(message.getId());
+        response.setFormat(message.getFormat());
+        response.setAcceptsCompression(message.acceptsCompression());
+        return response;
+    }
+
+    private static List<String> keysOf(List<KVPair> pairs) {
+        List<String> keys = new ArrayList<>(pairs.size());
+        for (KVPair pair : pairs) {
+            keys.add(pair.getKey());
+        }
+        return keys;
+    }
+
+    /**
+     * Keep a batch response within {@link KVMessage#MAX_BATCH_VALUE_SIZE}. The
+     * first value is always sent, so a client retrying the rest makes progress.
+     */
+    private static List<KVPair> limitBatch(List<KVPair> results) {
+        long size = 0;
+        for (KVPair result : results) {
+            if (result.getValue() == null) {
+                continue;
+            }
+            if (size > 0 && size + result.getValue().length() > KVMessage.MAX_BATCH_VALUE_SIZE) {
+                result.setValue(null);
+                result.setMessage(KVMessage.BATCH_OVERFLOW);
+            } else {
+                size += result.getValue().length();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Fill in a scan response with as many of the entries as fit: at most
+     * limit of them and {@link KVMessage#MAX_BATCH_VALUE_SIZE} value
+     * characters, though always at least one. If any are left over, the
+     * response's key is the first of them, where the next page starts.
+     */
+    private static void page(List<KVPair> entries, int limit, KVMessage response) {
+        long size = 0;
+        int count = 0;
+        for (KVPair entry : entries) {
+            if (count == limit || (count > 0 && size + entry.getValue().length() > KVMessage.MAX_BATCH_VALUE_SIZE)) {
+                response.setKey(entry.getKey());
+                break;
+            }
+            size += entry.getValue().length();
+            count++;
+        }
+        response.setPairs(new ArrayList<>(entries.subList(0, count)));
+    }
+
     /* (non-Javadoc)
      * @see edu.berkeley.cs162.NetworkHandler#handle(java.net.Socket)
      */
     @Override
     public void handle(Socket client) throws IOException {
-        Runnable r = new ClientHandler(client);
+        if (!dispatch(new ClientHandler(client))) {
+            try {
+                rejecter.execute(() -> reject(client));
+            } catch (RejectedExecutionException e) {
+                // Too many already waiting for a reply
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Answer the first request on a connection there is no room to service
+     * with {@link #SERVER_BUSY} and close it. The request is read first so
+     * that the reply carries its id and format; a client that has not sent
+     * it within a short time is simply disconnected. Runs on the rejecter
+     * thread.
+     */
+    private void reject(Socket client) {
+        try {
+            client.setSoTimeout(REJECT_READ_TIMEOUT);
+            KVMessage request = new KVMessage(client);
+            busy(request).sendMessage(client);
+        } catch (IOException | KVException e) {
+            // Nothing useful to tell a client that could not be read
+        } finally {
+            try {
+                client.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static KVMessage busy(KVMessage request) {
+        KVMessage response;
+        try {
+            response = new KVMessage("resp", SERVER_BUSY);
+        } catch (KVException e) {
+            response = e.getMsg();
+        }
+        response.setId(request.getId());
+        response.setFormat(request.getFormat());
+        return response;
+    }
+
+    /* (non-Javadoc)
+     * @see edu.berkeley.cs162.MessageHandler#handle(edu.berkeley.cs162.KVMessage, java.util.function.Consumer)
+     */
+    @Override
+    public void handle(KVMessage request, Consumer<KVMessage> responder) {
+        if (!dispatch(() -> responder.accept(process(request)))) {
+            responder.accept(busy(request));
+        }
+    }
+
+    /**
+     * Run a connection or request asynchronously. By default work is queued
+     * on the fixed size ThreadPool.
+     * @param r connection or request to service
+     * @return false if there was no room for the work, or the caller was
+     * interrupted while waiting for room
+     */
+    protected boolean dispatch(Runnable r) {
         try {
-            threadpool.addToQueue(r);
+            return threadpool.addToQueue(r);
         } catch (InterruptedException e) {
-            // Ignore this error
-            return;
+            // The work was not queued, so let the caller answer it; keep the interrupt for whoever asked
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 }
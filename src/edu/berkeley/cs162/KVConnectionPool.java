@@ -0,0 +1,195 @@
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of connections to a single Key-Value server, safe to share
+ * between threads. At most maxConnections sockets are open at once; a caller
+ * that finds them all checked out either waits up to the checkout timeout or,
+ * with a timeout of 0, fails straight away.
+ *
+ * Idle connections are reused most recently used first. Connections that have
+ * been idle for longer than maxIdleTime are closed rather than reused, and
+ * connections idle for more than a second are probed before being handed
+ * out, so that ones the server has timed out are not returned.
+ */
+public class KVConnectionPool {
+    private static final int SOCKET_TIMEOUT = 20000;
+    private static final long VALIDATE_AFTER_IDLE = 1000;
+
+    private static final String CONNECT_ERR = "Network Error: Could not establish connection with host";
+    private static final String EXHAUSTED_ERR = "Network Error: Connection pool exhausted";
+
+    private final String server;
+    private final int port;
+    private final long maxIdleTime;
+    private final long checkoutTimeout;
+    private final Semaphore permits;
+    private final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+    private volatile boolean closed = false;
+
+    /**
+     * A connection checked out of the pool. It must be handed back with
+     * either {@link KVConnectionPool#release(Connection)} or
+     * {@link KVConnectionPool#discard(Connection)}.
+     */
+    public static class Connection {
+        private final Socket socket;
+        private final boolean reused;
+        private long lastUsed;
+
+        private Connection(Socket socket, boolean reused) {
+            this.socket = socket;
+            this.reused = reused;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * @return true if the connection had already carried requests before this checkout
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+    /**
+     * @param server is the DNS reference to the Key-Value server
+     * @param port is the port on which the Key-Value server is listening
+     * @param maxConnections most connections open at once
+     * @param maxIdleTime milliseconds a connection may sit idle before it is closed
+     * @param checkoutTimeout milliseconds to wait for a connection when all are in use; 0 to fail immediately
+     */
+    public KVConnectionPool(String server, int port, int maxConnections, long maxIdleTime, long checkoutTimeout) {
+        this.server = server;
+        this.port = port;
+        this.maxIdleTime = maxIdleTime;
+        this.checkoutTimeout = checkoutTimeout;
+        this.permits = new Semaphore(maxConnections, true);
+    }
+
+    /**
+     * Take a healthy idle connection, or open a new one if there is none.
+     * @throws KVException if the pool is exhausted or a connection cannot be established
+     */
+    public Connection checkout() throws KVException {
+        if (closed) {
+            throw new KVException(new KVMessage("resp", CONNECT_ERR));
+        }
+        try {
+            if (!permits.tryAcquire(checkoutTimeout, TimeUnit.MILLISECONDS)) {
+                throw new KVException(new KVMessage("resp", EXHAUSTED_ERR));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(new KVMessage("resp", EXHAUSTED_ERR));
+        }
+
+        Connection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            long idleTime = System.currentTimeMillis() - conn.lastUsed;
+            if (idleTime <= maxIdleTime && (idleTime < VALIDATE_AFTER_IDLE || isHealthy(conn.socket))) {
+                return new Connection(conn.socket, true);
+            }
+            closeQuietly(conn.socket);
+        }
+
+        try {
+            Socket sock = new Socket(server, port);
+            sock.setSoTimeout(SOCKET_TIMEOUT);
+            sock.setTcpNoDelay(true);
+            return new Connection(sock, false);
+        } catch (IOException e) {
+            permits.release();
+            throw new KVException(new KVMessage("resp", CONNECT_ERR));
+        }
+    }
+
+    /**
+     * Return a connection that is still in a usable state to the pool.
+     */
+    public void release(Connection conn) {
+        if (closed || conn.socket.isClosed()) {
+            closeQuietly(conn.socket);
+        } else {
+            conn.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(conn);
+            evictExpired(conn.lastUsed);
+        }
+        permits.release();
+    }
+
+    /**
+     * Close a connection that failed or whose stream is no longer in step.
+     */
+    public void discard(Connection conn) {
+        closeQuietly(conn.socket);
+        permits.release();
+    }
+
+    /**
+     * Close all idle connections. Connections still checked out are closed
+     * when they are handed back.
+     */
+    public void close() {
+        closed = true;
+        Connection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            closeQuietly(conn.socket);
+        }
+    }
+
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    private void evictExpired(long now) {
+        Connection oldest;
+        while ((oldest = idle.peekLast()) != null && now - oldest.lastUsed > maxIdleTime) {
+            if (idle.removeLastOccurrence(oldest)) {
+                closeQuietly(oldest.socket);
+            }
+        }
+    }
+
+    /**
+     * A connection is healthy if the server has neither closed it nor sent
+     * anything on it while it was idle.
+     */
+    private boolean isHealthy(Socket sock) {
+        if (sock.isClosed() || sock.isInputShutdown() || sock.isOutputShutdown()) {
+            return false;
+        }
+        try {
+            InputStream in = sock.getInputStream();
+            sock.setSoTimeout(1);
+            try {
+                in.read();
+                return false;
+            } catch (SocketTimeoutException e) {
+                return true;
+            } finally {
+                sock.setSoTimeout(SOCKET_TIMEOUT);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket sock) {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            // Nothing more to do with a broken connection
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package edu.berkeley.cs162;
+
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled log for the server and client. Callers only pay for a volatile read
+ * when a level is off; otherwise a record holding the unformatted arguments
+ * is placed in a fixed size ring buffer, and a single background thread
+ * formats and writes records to standard out. Workers never wait on the
+ * stdout lock or on each other: if the writer falls behind, new records are
+ * dropped and counted rather than queued without bound.
+ *
+ * Per request records are logged at DEBUG for a random sample of one in
+ * every N requests; lock traffic and whole messages are logged at TRACE.
+ * The starting level and sample rate come from the kvstore.log.level and
+ * kvstore.log.sample system properties, and default to INFO and 1.
+ */
+public final class KVLog {
+    public enum Level {
+        OFF, ERROR, INFO, DEBUG, TRACE
+    }
+
+    /**
+     * Records the ring buffer holds; a power of two
+     */
+    private static final int CAPACITY = 8192;
+    private static final int MASK = CAPACITY - 1;
+
+    /**
+     * Nanoseconds the writer sleeps when the buffer is empty
+     */
+    private static final long IDLE_WAIT = 10_000_000L;
+
+    private static final DateTimeFormatter TIME_FORMAT =
+            DateTimeFormatter.ofPattern("HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private static volatile int threshold = parseLevel(System.getProperty("kvstore.log.level", "INFO")).ordinal();
+    private static volatile int sampleRate = Math.max(1, Integer.getInteger("kvstore.log.sample", 1));
+
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(CAPACITY);
+    /**
+     * Next slot a producer claims
+     */
+    private static final AtomicLong tail = new AtomicLong();
+    /**
+     * Next slot the writer reads. Only advanced while holding the KVLog class lock.
+     */
+    private static volatile long head = 0;
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported = 0;
+    private static final AtomicBoolean started = new AtomicBoolean();
+
+    private KVLog() {
+    }
+
+    public static Level getLevel() {
+        return Level.values()[threshold];
+    }
+
+    public static void setLevel(Level level) {
+        threshold = level.ordinal();
+    }
+
+    /**
+     * @param rate log one request in every rate; 1 logs them all
+     */
+    public static void setSampleRate(int rate) {
+        sampleRate = Math.max(1, rate);
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.ordinal() <= threshold;
+    }
+
+    /**
+     * Decide whether a request is part of the sample, and so whether its
+     * DEBUG records should be written.
+     */
+    public static boolean sample() {
+        if (threshold < Level.DEBUG.ordinal()) {
+            return false;
+        }
+        int rate = sampleRate;
+        return rate == 1 || ThreadLocalRandom.current().nextInt(rate) == 0;
+    }
+
+    /**
+     * @return records thrown away because the writer could not keep up
+     */
+    public static long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    public static void log(Level level, String message) {
+        if (isEnabled(level)) {
+            enqueue(new Record(level, message, null));
+        }
+    }
+
+    public static void log(Level level, String format, Object arg) {
+        if (isEnabled(level)) {
+            enqueue(new Record(level, format, new Object[] { arg }));
+        }
+    }
+
+    public static void log(Level level, String format, Object arg1, Object arg2) {
+        if (isEnabled(level)) {
+            enqueue(new Record(level, format, new Object[] { arg1, arg2 }));
+        }
+    }
+
+    /**
+     * @param format a {@link String#format} pattern, only applied if the record is written
+     */
+    public static void log(Level level, String format, Object... args) {
+        if (isEnabled(level)) {
+            enqueue(new Record(level, format, args));
+        }
+    }
+
+    /**
+     * Log a request and the response it got, along with how long it took.
+     */
+    public static void request(KVMessage request, KVMessage response, long nanos) {
+        log(Level.DEBUG, "%s -> %s (%d us)", request, response, nanos / 1000);
+    }
+
+    /**
+     * @return an argument that prints the message as indented XML. The XML
+     * is captured now, but only indented if the record is written.
+     */
+    public static Object pretty(KVMessage message) {
+        String xml;
+        try {
+            xml = message.toXML();
+        } catch (KVException e) {
+            return message;
+        }
+        return new Object() {
+            @Override
+            public String toString() {
+                return XmlFormatter.prettyFormat(xml);
+            }
+        };
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    private static class Record {
+        final Level level;
+        final long time = System.currentTimeMillis();
+        final String thread = Thread.currentThread().getName();
+        final String format;
+        final Object args[];
+
+        Record(Level level, String format, Object args[]) {
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+
+        void appendTo(StringBuilder out) {
+            out.append(TIME_FORMAT.format(Instant.ofEpochMilli(time)))
+                    .append(' ').append(level)
+                    .append(" [").append(thread).append("] ");
+            try {
+                out.append(args == null ? format : String.format(format, args));
+            } catch (RuntimeException e) {
+                out.append(format).append(" (").append(e).append(')');
+            }
+            out.append('\n');
+        }
+    }
+
+    private static void enqueue(Record record) {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            startWriter();
+        }
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.set((int) (slot & MASK), record);
+    }
+
+    private static void startWriter() {
+        Thread writer = new Thread(() -> {
+            while (true) {
+                if (!drain()) {
+                    LockSupport.parkNanos(IDLE_WAIT);
+                }
+            }
+        }, "KVLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(KVLog::drain));
+    }
+
+    /**
+     * Write out every record published so far.
+     * @return false if there was nothing to write
+     */
+    private static synchronized boolean drain() {
+        StringBuilder out = new StringBuilder();
+        long end = tail.get();
+        while (head < end) {
+            int i = (int) (head & MASK);
+            Record record = ring.get(i);
+            if (record == null) {
+                // Claimed but not yet stored; the producer is between two instructions
+                Thread.onSpinWait();
+                continue;
+            }
+            ring.set(i, null);
+            head = head + 1;
+            record.appendTo(out);
+        }
+        long lost = dropped.sum();
+        if (lost > droppedReported) {
+            out.append("KVLog: dropped ").append(lost - droppedReported).append(" records\n");
+            droppedReported = lost;
+        }
+        if (out.length() == 0) {
+            return false;
+        }
+        System.out.print(out);
+        System.out.flush();
+        return true;
+    }
+}
@@ -32,22 +32,13 @@ package edu.berkeley.cs162;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.*;
-import org.xml.sax.*;
-
 /**
  * This is the object that is used to generate messages the XML based messages
  * for communication between clients and servers.
@@ -57,13 +48,41 @@ public class KVMessage {
     private String key = null;
     private String value = null;
     private String message = null;
+    private String id = null;
+    private Format format = Format.XML;
+    private ByteBuffer encodedValue = null;
+    private boolean encodedValueDeflated = false;
+    private boolean acceptsCompression = false;
+    private List<KVPair> pairs = null;
+    private String endKey = null;
+    private String prefix = null;
+    private int limit = 0;
+
+    /**
+     * Encodings a message can be sent in. Received messages remember the
+     * encoding they arrived in so that replies can be sent the same way.
+     */
+    public enum Format {
+        XML, BINARY
+    }
 
-    private static final String[] MSG_TYPES = {"getreq", "putreq", "delreq", "resp"};
+    private static final String[] MSG_TYPES = {"getreq", "putreq", "delreq", "resp",
+            "multigetreq", "multiputreq", "multidelreq", "multiresp", "scanreq", "scanresp"};
     private static final Set<String> TYPE_SET = new HashSet<>(Arrays.asList(MSG_TYPES));
 
-    private static final String MSG_FORMAT_ERR = "Message Format Incorrect";
-    private static final String XML_ERR = "XML Error: Received unparseable message";
-    private static final String NETWORK_ERR = "Network Error: Could not receive data";
+    static final String MSG_FORMAT_ERR = "Message Format Incorrect";
+    static final String NETWORK_ERR = "Network Error: Could not receive data";
+
+    /**
+     * Most value characters a batch response carries. Entries beyond it are
+     * answered with BATCH_OVERFLOW and should be asked for again.
+     */
+    static final int MAX_BATCH_VALUE_SIZE = 1024 * 1024;
+    static final String BATCH_OVERFLOW = "Batch Error: Response too large, retry";
+    /**
+     * Most entries a scan response carries, whatever limit was asked for
+     */
+    static final int MAX_SCAN_LIMIT = 1000;
 
     public final String getKey() {
         return key;
@@ -93,14 +112,118 @@ public class KVMessage {
         return msgType;
     }
 
-    /* Solution from http://weblogs.java.net/blog/kohsuke/archive/2005/07/socket_xml_pitf.html */
-    private class NoCloseInputStream extends FilterInputStream {
-        public NoCloseInputStream(InputStream in) {
-            super(in);
-        }
+    /**
+     * @return true for the multi-key message types, which carry their keys as {@link #getPairs()}
+     */
+    public final boolean isBatch() {
+        return msgType.startsWith("multi");
+    }
+
+    /**
+     * @return the entries of a batch message, or null for a single key message
+     */
+    public final List<KVPair> getPairs() {
+        return pairs;
+    }
+
+    public final void setPairs(List<KVPair> pairs) {
+        this.pairs = pairs;
+    }
+
+    /**
+     * @return true for the message types that carry entries as {@link #getPairs()}: batches and scan responses
+     */
+    final boolean hasPairs() {
+        return isBatch() || msgType.equals("scanresp");
+    }
+
+    /**
+     * @return for a scan request, the key to stop before, or null for no upper bound
+     */
+    public final String getEndKey() {
+        return endKey;
+    }
+
+    public final void setEndKey(String endKey) {
+        this.endKey = endKey;
+    }
+
+    /**
+     * @return for a scan request, the prefix every key returned must start with, or null for any key
+     */
+    public final String getPrefix() {
+        return prefix;
+    }
+
+    public final void setPrefix(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @return for a scan request, the most entries to return
+     */
+    public final int getLimit() {
+        return limit;
+    }
+
+    public final void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * @return the request id used to match a response to its request, or null if the message is untagged
+     */
+    public final String getId() {
+        return id;
+    }
 
-        public void close() {
-        } // ignore close
+    public final void setId(String id) {
+        this.id = id;
+    }
+
+    public final Format getFormat() {
+        return format;
+    }
+
+    /**
+     * @return the value already encoded as UTF-8, if one was attached, positioned at its start
+     */
+    final ByteBuffer getEncodedValue() {
+        return encodedValue == null ? null : encodedValue.duplicate();
+    }
+
+    /**
+     * @return true if the attached encoded value has also been compressed
+     */
+    final boolean isEncodedValueDeflated() {
+        return encodedValueDeflated;
+    }
+
+    /**
+     * Attach the UTF-8 encoding of the value so that binary frames can send
+     * it as is. Must match the value set with {@link #setValue(String)}.
+     * @param encodedValue the encoded value
+     * @param deflated true if the encoding has been compressed with {@link KVBinaryCodec#deflate(ByteBuffer)}
+     */
+    final void setEncodedValue(ByteBuffer encodedValue, boolean deflated) {
+        this.encodedValue = encodedValue;
+        this.encodedValueDeflated = encodedValue != null && deflated;
+    }
+
+    /**
+     * @return true if the other end of the connection, whether this message
+     * came from it or is going to it, can read compressed values
+     */
+    final boolean acceptsCompression() {
+        return acceptsCompression;
+    }
+
+    final void setAcceptsCompression(boolean acceptsCompression) {
+        this.acceptsCompression = acceptsCompression;
+    }
+
+    public final void setFormat(Format format) {
+        this.format = format;
     }
 
     /***
@@ -134,87 +257,158 @@ public class KVMessage {
      * c. "Message format incorrect" - if there message does not conform to the required specifications. Examples include incorrect message type.
      */
     public KVMessage(Socket sock) throws KVException {
-        ObjectInputStream in = null;
-        String type, kvMsg;
-        Node rootNode;
-        NodeList rootEle, keyEle, valueEle, msgEle;
+        this(openInputStream(sock));
+    }
 
+    /***
+     * Parse KVMessage from an input stream positioned at the start of a message.
+     * The stream is left open so that it can carry further messages.
+     * @param input stream to receive from
+     * @throws KVException under the same conditions as {@link #KVMessage(Socket)}
+     */
+    public KVMessage(InputStream input) throws KVException {
+        PushbackInputStream in = new PushbackInputStream(input, 2);
+        Format detected;
         try {
-            in = new ObjectInputStream(new NoCloseInputStream(sock.getInputStream()));
-            kvMsg = (String) in.readObject();
-
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            InputSource source = new InputSource(new StringReader(kvMsg));
-            Document doc = dbf.newDocumentBuilder().parse(source);
-            doc.getDocumentElement().normalize();
-
-            rootEle = doc.getElementsByTagName("KVMessage");
-            if (rootEle.getLength() != 1) {
-                throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+            int b0 = in.read();
+            int b1 = in.read();
+            if (b0 < 0 || b1 < 0) {
+                throw new EOFException();
             }
+            in.unread(new byte[]{(byte) b0, (byte) b1});
+            detected = KVBinaryCodec.isBinary((b0 << 8) | b1) ? Format.BINARY : Format.XML;
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
+        }
 
-            rootNode = rootEle.item(0);
-            type = parseAttribute(rootNode, "type", 0);
-            if (!TYPE_SET.contains(type)) {
-                throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+        try {
+            if (detected == Format.BINARY) {
+                parseBinary(in);
+            } else {
+                parseXML(in);
             }
-            this.msgType = type;
+        } catch (KVException e) {
+            e.getMsg().setFormat(detected);
+            throw e;
+        }
+        this.format = detected;
+    }
+
+    /***
+     * Parse KVMessage from a complete frame, as found by {@link KVMessageFrameDecoder},
+     * without copying it first.
+     * @param frame bytes of exactly one message
+     * @throws KVException under the same conditions as {@link #KVMessage(Socket)}
+     */
+    public KVMessage(byte frame[]) throws KVException {
+        if (frame.length < 2) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
+        }
+        Format detected = KVBinaryCodec.isBinary(((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF)) ? Format.BINARY : Format.XML;
+        try {
+            copyFrom(detected == Format.BINARY ? KVBinaryCodec.decode(ByteBuffer.wrap(frame)) : KVXmlCodec.decode(frame));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
+        } catch (KVException e) {
+            e.getMsg().setFormat(detected);
+            throw e;
+        }
+        this.format = detected;
+    }
 
-            if (this.msgType.equals("putreq") || this.msgType.equals("getreq") || this.msgType.equals("delreq")) {
-                this.key = parseElement(doc, "Key");
+    private void parseBinary(InputStream input) throws KVException {
+        try {
+            copyFrom(KVBinaryCodec.read(input));
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
+        }
+    }
 
-                if (msgType.equals("putreq")) {
-                    this.value = parseElement(doc, "Value");
-                }
-            } else {
-                keyEle = doc.getElementsByTagName("Key");
-                valueEle = doc.getElementsByTagName("Value");
-                msgEle = doc.getElementsByTagName("Message");
-
-                if (keyEle.getLength() == 1 && valueEle.getLength() == 1 && msgEle.getLength() == 0) {
-                    this.key = parseElement(doc, "Key");
-                    this.value = parseElement(doc, "Value");
-                } else if (msgEle.getLength() == 1 && keyEle.getLength() == 0 && valueEle.getLength() == 0) {
-                    this.message = parseElement(doc, "Message");
-                } else {
-                    throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
-                }
-            }
+    private void parseXML(InputStream input) throws KVException {
+        try {
+            copyFrom(KVXmlCodec.read(input));
         } catch (IOException e) {
             throw new KVException(new KVMessage("resp", NETWORK_ERR));
-        } catch (ClassNotFoundException | ParserConfigurationException e) {
-            e.printStackTrace();
-            throw new KVException(new KVMessage("resp", "Unknown Error: " + e.getMessage()));
-        } catch (SAXException e) {
-            throw new KVException(new KVMessage("resp", XML_ERR));
-        } finally {
-            try {
-                if (in != null) {
-                    in.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                throw new KVException(new KVMessage("resp", "Unknown Error: " + e.getMessage()));
-            }
         }
     }
 
-    private String parseAttribute(Node node, String attrName, int idx) throws KVException {
-        NamedNodeMap attributes = node.getAttributes();
-        if (!attributes.item(idx).getNodeName().equals(attrName)) {
-            throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+    private void copyFrom(KVMessage decoded) {
+        this.msgType = decoded.msgType;
+        this.id = decoded.id;
+        this.key = decoded.key;
+        this.value = decoded.value;
+        this.message = decoded.message;
+        this.pairs = decoded.pairs;
+        this.endKey = decoded.endKey;
+        this.prefix = decoded.prefix;
+        this.limit = decoded.limit;
+        this.acceptsCompression = decoded.acceptsCompression;
+    }
+
+    private static InputStream openInputStream(Socket sock) throws KVException {
+        try {
+            return sock.getInputStream();
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
         }
-        return attributes.item(0).getNodeValue();
     }
 
-    private String parseElement(Document doc, String tagName) throws KVException {
-        NodeList ele = doc.getElementsByTagName(tagName);
-        if (ele.getLength() != 1) {
-            throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+    /**
+     * Check that the fields required by this message's type are present.
+     * @throws KVException if not enough data is available to generate a valid message
+     */
+    void checkFields() throws KVException {
+        if (isBatch()) {
+            checkPairs();
+        } else if (this.msgType.equals("scanreq")) {
+            // The key, if any, is where the scan starts
+            if (this.value != null || this.message != null || this.pairs != null) {
+                throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+            }
+            if (this.limit <= 0) {
+                throw new KVException(new KVMessage("resp", "XML Error: No Limit"));
+            }
+        } else if (this.msgType.equals("scanresp")) {
+            // The key, if any, is where the next page starts
+            if (this.value != null || this.message != null || this.pairs == null) {
+                throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+            }
+            for (KVPair pair : this.pairs) {
+                if (pair.getKey() == null || pair.getValue() == null) {
+                    throw new KVException(new KVMessage("resp", "XML Error: not enough data"));
+                }
+            }
+        } else if (this.msgType.equals("getreq") || this.msgType.equals("putreq") || this.msgType.equals("delreq")) {
+            if (this.key == null) {
+                throw new KVException(new KVMessage("resp", "XML Error: No Key"));
+            }
+            if (this.msgType.equals("putreq") && this.value == null) {
+                throw new KVException(new KVMessage("resp", "XML Error: No Value"));
+            }
+        } else if (!(this.key != null && this.value != null && this.message == null)
+                && !(this.message != null && this.key == null && this.value == null)) {
+            throw new KVException(new KVMessage("resp", "XML Error: not enough data"));
         }
+    }
 
-        Node node = ele.item(0);
-        return node.getTextContent();
+    private void checkPairs() throws KVException {
+        if (this.key != null || this.value != null || this.message != null) {
+            throw new KVException(new KVMessage("resp", MSG_FORMAT_ERR));
+        }
+        if (this.pairs == null || this.pairs.isEmpty()) {
+            throw new KVException(new KVMessage("resp", "XML Error: No Key"));
+        }
+        for (KVPair pair : this.pairs) {
+            if (pair.getKey() == null) {
+                throw new KVException(new KVMessage("resp", "XML Error: No Key"));
+            }
+            if (this.msgType.equals("multiputreq") && pair.getValue() == null) {
+                throw new KVException(new KVMessage("resp", "XML Error: No Value"));
+            }
+            if (this.msgType.equals("multiresp") && (pair.getValue() == null) == (pair.getMessage() == null)) {
+                throw new KVException(new KVMessage("resp", "XML Error: not enough data"));
+            }
+        }
     }
 
     /**
@@ -224,80 +418,90 @@ public class KVMessage {
      * @throws KVException if not enough data is available to generate a valid KV XML message
      */
     public String toXML() throws KVException {
-        try {
-            Element root, keyEle, valueEle, msgEle;
-
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            DocumentBuilder db = dbf.newDocumentBuilder();
-
-            Document doc = db.newDocument();
-            doc.setXmlStandalone(true);
-
-            root = doc.createElement("KVMessage");
-            root.setAttribute("type", this.msgType);
-
-            doc.appendChild(root);
-
-            if (this.msgType.equals("getreq") || this.msgType.equals("putreq") || this.msgType.equals("delreq")) {
-                if (this.key == null) {
-                    throw new KVException(new KVMessage("resp", "XML Error: No Key"));
-                }
-
-                createAndAppend(doc, "Key", this.key, root);
+        return KVXmlCodec.toXML(this);
+    }
 
-                if (this.msgType.equals("putreq")) {
-                    if (this.value == null) {
-                        throw new KVException(new KVMessage("resp", "XML Error: No Value"));
-                    }
+    /**
+     * One line summary for the request log. Values are given by length only.
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(msgType).append('[');
+        if (id != null) {
+            sb.append("id=").append(id).append(", ");
+        }
+        if (key != null) {
+            sb.append("key=").append(key).append(", ");
+        }
+        if (value != null) {
+            sb.append("value=").append(value.length()).append(" chars, ");
+        }
+        if (message != null) {
+            sb.append("message=").append(message).append(", ");
+        }
+        if (pairs != null) {
+            sb.append("pairs=").append(pairs.size()).append(", ");
+        }
+        if (endKey != null) {
+            sb.append("endKey=").append(endKey).append(", ");
+        }
+        if (prefix != null) {
+            sb.append("prefix=").append(prefix).append(", ");
+        }
+        if (limit > 0) {
+            sb.append("limit=").append(limit).append(", ");
+        }
+        sb.append(format);
+        return sb.append(']').toString();
+    }
 
-                    createAndAppend(doc, "Value", this.value, root);
-                }
-            } else {
-                if (this.key != null && this.value != null && this.message == null) {
-                    createAndAppend(doc, "Key", this.key, root);
-                    createAndAppend(doc, "Value", this.value, root);
-                } else if (this.message != null && this.key == null && this.value == null) {
-                    createAndAppend(doc, "Message", this.message, root);
-                } else {
-                    throw new KVException(new KVMessage("resp", "XML Error: not enough data"));
-                }
+    /**
+     * Write this message to a socket. A binary message goes straight to the
+     * socket's channel if it has one in blocking mode, so that a shared
+     * value buffer is not copied; otherwise it goes through the stream.
+     * @param sock socket to send on
+     * @throws KVException if the message cannot be generated or the socket fails
+     */
+    public void sendMessage(Socket sock) throws KVException {
+        SocketChannel channel = sock.getChannel();
+        if (format == Format.BINARY && channel != null && channel.isBlocking()) {
+            try {
+                KVBinaryCodec.write(this, channel);
+            } catch (IOException e) {
+                throw new KVException(new KVMessage("resp", NETWORK_ERR));
             }
-
-            StringWriter stringWriter = new StringWriter();
-            Transformer transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.transform(new DOMSource(doc), new StreamResult(stringWriter));
-            return stringWriter.toString();
-        } catch (ParserConfigurationException | TransformerException e) {
-            e.printStackTrace();
-            return null;
+            return;
         }
-    }
 
-    private void createAndAppend(Document doc, String tagName, String eleValue, Element parent) {
-        Element ele = doc.createElement(tagName);
-        ele.appendChild(doc.createTextNode(eleValue));
-        parent.appendChild(ele);
+        OutputStream output;
+        try {
+            output = sock.getOutputStream();
+        } catch (IOException e) {
+            throw new KVException(new KVMessage("resp", NETWORK_ERR));
+        }
+        sendMessage(output);
     }
 
-    public void sendMessage(Socket sock) throws KVException {
-        ObjectOutputStream out = null;
-        try {
-            out = new ObjectOutputStream(sock.getOutputStream());
-            String kvMsg = this.toXML();
-            out.writeObject(kvMsg);
-            out.flush();
-        } catch (KVException e) {
+    /**
+     * Write this message to an output stream. The stream is flushed but not closed.
+     * @param output stream to send on
+     * @throws KVException if the message cannot be generated or the stream fails
+     */
+    public void sendMessage(OutputStream output) throws KVException {
+        if (format == Format.BINARY) {
             try {
-                out.close();
-            } catch (IOException e1) {
-                e1.printStackTrace();
+                KVBinaryCodec.write(this, output);
+            } catch (IOException e) {
+                throw new KVException(new KVMessage("resp", NETWORK_ERR));
             }
-            throw e;
+            return;
+        }
+
+        try {
+            KVXmlCodec.write(this, output);
         } catch (IOException e) {
             try {
-                if (out != null) {
-                    out.close();
-                }
+                output.close();
             } catch (IOException e1) {
                 e1.printStackTrace();
             }
@@ -305,5 +509,3 @@ public class KVMessage {
         }
     }
 }
-
-
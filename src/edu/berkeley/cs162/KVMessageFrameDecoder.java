@@ -0,0 +1,74 @@
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+/**
+ * Finds the boundaries of KVMessages in a byte stream without blocking.
+ * An XML message on the wire is a complete serialization stream written by
+ * {@link KVMessage#sendMessage(java.io.OutputStream)}: the stream header
+ * followed by a single String (or null) object. Binary messages are framed
+ * as described in {@link KVBinaryCodec}.
+ */
+public class KVMessageFrameDecoder {
+    /**
+     * Upper bound on a single frame. A maximum sized value expands by a few
+     * times once it has been escaped and encoded, so this leaves plenty of room.
+     */
+    public static final int MAX_FRAME_SIZE = 8 * 1024 * 1024;
+
+    private static final int STREAM_MAGIC = 0xACED;
+    private static final int STREAM_VERSION = 5;
+    private static final byte TC_NULL = 0x70;
+    private static final byte TC_STRING = 0x74;
+    private static final byte TC_LONGSTRING = 0x7C;
+
+    private static final int HEADER_SIZE = 5;
+
+    /**
+     * Determine the length of the frame starting at the buffer's position.
+     * The buffer's position and limit are not modified.
+     * @param buf bytes received so far
+     * @return the length of the first frame, or -1 if it has not been fully received
+     * @throws IOException if the bytes cannot be the start of a valid frame
+     */
+    public static int frameLength(ByteBuffer buf) throws IOException {
+        int start = buf.position();
+        int available = buf.remaining();
+        if (available >= 2 && KVBinaryCodec.isBinary(buf.getShort(start) & 0xFFFF)) {
+            return KVBinaryCodec.frameLength(buf);
+        }
+        if (available < HEADER_SIZE) {
+            return -1;
+        }
+        if ((buf.getShort(start) & 0xFFFF) != STREAM_MAGIC || buf.getShort(start + 2) != STREAM_VERSION) {
+            throw new StreamCorruptedException("invalid stream header");
+        }
+
+        long length;
+        switch (buf.get(start + 4)) {
+            case TC_NULL:
+                return HEADER_SIZE;
+            case TC_STRING:
+                if (available < HEADER_SIZE + 2) {
+                    return -1;
+                }
+                length = HEADER_SIZE + 2 + (buf.getShort(start + HEADER_SIZE) & 0xFFFF);
+                break;
+            case TC_LONGSTRING:
+                if (available < HEADER_SIZE + 8) {
+                    return -1;
+                }
+                length = HEADER_SIZE + 8 + buf.getLong(start + HEADER_SIZE);
+                break;
+            default:
+                throw new StreamCorruptedException("unexpected type code");
+        }
+
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("frame too large: " + length);
+        }
+        return available < length ? -1 : (int) length;
+    }
+}
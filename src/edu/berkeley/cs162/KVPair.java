@@ -0,0 +1,48 @@
+package edu.berkeley.cs162;
+
+/**
+ * One entry of a batch message: a key together with, depending on the
+ * message type, the value to store, the value found, or the message
+ * describing what happened to it.
+ */
+public class KVPair {
+    private String key = null;
+    private String value = null;
+    private String message = null;
+
+    public KVPair(String key) {
+        this.key = key;
+    }
+
+    public KVPair(String key, String value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public final String getKey() {
+        return key;
+    }
+
+    public final void setKey(String key) {
+        this.key = key;
+    }
+
+    public final String getValue() {
+        return value;
+    }
+
+    public final void setValue(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return "Success" or an error for a write, an error for a read that found nothing, otherwise null
+     */
+    public final String getMessage() {
+        return message;
+    }
+
+    public final void setMessage(String message) {
+        this.message = message;
+    }
+}
@@ -30,6 +30,16 @@
  */
 package edu.berkeley.cs162;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
@@ -43,11 +53,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
  *
  */
 public class KVServer implements KeyValueInterface {
-    private final KVStore dataStore;
+    private final KVStorageEngine dataStore;
     private KVCache dataCache = null;
 
     private static final int MAX_KEY_SIZE = 256;
-    private static final int MAX_VAL_SIZE = 256 * 1024;
+    static final int MAX_VAL_SIZE = 256 * 1024;
     private static final String OVERSIZED_KEY = "Key Error: Oversized Key";
     private static final String UNDERSIZED_KEY = "Key Error: Undersized Key";
     private static final String OVERSIZED_VALUE = "Value Error: Oversized Value";
@@ -58,7 +68,15 @@ public class KVServer implements KeyValueInterface {
      * @param numSets number of sets in the data Cache.
      */
     public KVServer(int numSets, int maxElemsPerSet) {
-        dataStore = new KVStore();
+        this(numSets, maxElemsPerSet, new KVStore());
+    }
+
+    /**
+     * @param numSets number of sets in the data Cache.
+     * @param dataStore the store behind the cache, such as a durable KVStore or a BitcaskStore
+     */
+    public KVServer(int numSets, int maxElemsPerSet, KVStorageEngine dataStore) {
+        this.dataStore = dataStore;
         dataCache = new KVCache(numSets, maxElemsPerSet);
 
         AutoGrader.registerKVServer(dataStore, dataCache);
@@ -72,22 +90,27 @@ public class KVServer implements KeyValueInterface {
         checkValueSize(value);
 
         WriteLock cacheWrLock = dataCache.getWriteLock(key);
-        WriteLock storeWrLock = dataStore.getLock().writeLock();
-        System.out.println("Locking StoreWriteLock");
-        storeWrLock.lock();
-        System.out.println("Locking Cache");
+        WriteLock storeWrLock = dataStore.getLock(key).writeLock();
+        KVLog.log(KVLog.Level.TRACE, "Locking Cache");
         cacheWrLock.lock();
         try {
-            System.out.printf("putting (%s -> %s)\n", key, value);
-            dataStore.put(key, value);
-            dataCache.put(key, value);
+            KVLog.log(KVLog.Level.TRACE, "Locking StoreWriteLock");
+            storeWrLock.lock();
+            try {
+                KVLog.log(KVLog.Level.TRACE, "putting (%s -> %s)", key, value);
+                dataStore.put(key, value);
+                dataCache.put(key, value);
+            } finally {
+                KVLog.log(KVLog.Level.TRACE, "Unlocking StoreWriteLock");
+                storeWrLock.unlock();
+            }
+            // Only the key's cache set stays locked, so writers to other sets can share the fsync
+            dataStore.awaitDurable();
         } finally {
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerPutFinished(key, value);
-            System.out.println("Unlocking Cache");
+            KVLog.log(KVLog.Level.TRACE, "Unlocking Cache");
             cacheWrLock.unlock();
-            System.out.println("Unlocking StoreWriteLock");
-            storeWrLock.unlock();
         }
     }
 
@@ -100,36 +123,71 @@ public class KVServer implements KeyValueInterface {
         String result;
 
         WriteLock cacheWrLock = dataCache.getWriteLock(key);
-        System.out.println("Locking Cache");
+        KVLog.log(KVLog.Level.TRACE, "Locking Cache");
         cacheWrLock.lock();
         try {
             result = dataCache.get(key);
             if (result == null) {
-                System.out.println("Cache Miss: Looking in Data Store");
+                KVLog.log(KVLog.Level.TRACE, "Cache Miss: Looking in Data Store");
+                checkMightContain(key);
 
-                ReadLock storeRLock = dataStore.getLock().readLock();
-                System.out.println("Locking StoreReadLock");
+                ReadLock storeRLock = dataStore.getLock(key).readLock();
+                KVLog.log(KVLog.Level.TRACE, "Locking StoreReadLock");
                 storeRLock.lock();
                 try {
                     result = getFromStore(key);
                 } finally {
-                    System.out.println("Unlocking StoreReadLock");
+                    KVLog.log(KVLog.Level.TRACE, "Unlocking StoreReadLock");
                     storeRLock.unlock();
                 }
-                System.out.printf("putting (%s -> %s) in cache", key, result);
+                KVLog.log(KVLog.Level.TRACE, "putting (%s -> %s) in cache", key, result);
                 dataCache.put(key, result);
             } else {
-                System.out.println("Cache Hit!");
+                KVLog.log(KVLog.Level.TRACE, "Cache Hit!");
             }
         } finally {
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerGetFinished(key);
-            System.out.println("Unlocking Cache");
+            KVLog.log(KVLog.Level.TRACE, "Unlocking Cache");
             cacheWrLock.unlock();
         }
         return result;
     }
 
+    /**
+     * Look up the UTF-8 encoding the cache keeps for a large value just
+     * returned by {@link #get(String)}, so it can be sent without encoding it
+     * again.
+     * @param key the key that was read
+     * @param value the value the read returned
+     * @return a read-only buffer holding the encoded value, or null if there is
+     * none or the key has been changed since it was read
+     */
+    ByteBuffer getEncoded(String key, String value) {
+        WriteLock cacheWrLock = dataCache.getWriteLock(key);
+        cacheWrLock.lock();
+        try {
+            return dataCache.getEncoded(key, value);
+        } finally {
+            cacheWrLock.unlock();
+        }
+    }
+
+    /**
+     * As {@link #getEncoded(String, String)}, compressed for a peer that accepts compressed values.
+     * @return a read-only buffer holding the compressed value, or null if there
+     * is none, the value does not compress, or the key has been changed since it was read
+     */
+    ByteBuffer getDeflated(String key, String value) {
+        WriteLock cacheWrLock = dataCache.getWriteLock(key);
+        cacheWrLock.lock();
+        try {
+            return dataCache.getDeflated(key, value);
+        } finally {
+            cacheWrLock.unlock();
+        }
+    }
+
     public void del(String key) throws KVException {
         // Must be called before anything else
         AutoGrader.agKVServerDelStarted(key);
@@ -137,23 +195,354 @@ public class KVServer implements KeyValueInterface {
         checkKeySize(key);
 
         WriteLock cacheWrLock = dataCache.getWriteLock(key);
-        WriteLock storeWrLock = dataStore.getLock().writeLock();
-        System.out.println("Locking StoreWriteLock");
-        storeWrLock.lock();
-        System.out.println("Locking Cache");
+        WriteLock storeWrLock = dataStore.getLock(key).writeLock();
+        KVLog.log(KVLog.Level.TRACE, "Locking Cache");
         cacheWrLock.lock();
         try {
-            getFromStore(key);
+            checkMightContain(key);
+            KVLog.log(KVLog.Level.TRACE, "Locking StoreWriteLock");
+            storeWrLock.lock();
+            try {
+                getFromStore(key);
 
-            dataCache.del(key);
-            dataStore.del(key);
+                dataCache.del(key);
+                dataStore.del(key);
+            } finally {
+                KVLog.log(KVLog.Level.TRACE, "Unlocking StoreWriteLock");
+                storeWrLock.unlock();
+            }
+            dataStore.awaitDurable();
         } finally {
             // Must be called before return or abnormal exit
             AutoGrader.agKVServerDelFinished(key);
-            System.out.println("Unlocking Cache");
+            KVLog.log(KVLog.Level.TRACE, "Unlocking Cache");
             cacheWrLock.unlock();
-            System.out.println("Unlocking StoreWriteLock");
-            storeWrLock.unlock();
+        }
+    }
+
+    /**
+     * Look up many keys at once. Each cache set involved is locked once for
+     * the whole batch, and the keys missing from the cache are read from the
+     * store in a single access.
+     * @param keys the keys to look up
+     * @return one entry per key, in order, holding either its value or the error for it
+     */
+    public List<KVPair> multiGet(List<String> keys) {
+        for (String key : keys) {
+            AutoGrader.agKVServerGetStarted(key);
+        }
+
+        List<KVPair> results = new ArrayList<>(keys.size());
+        List<String> valid = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            KVPair result = new KVPair(key);
+            results.add(result);
+            try {
+                checkKeySize(key);
+                valid.add(key);
+            } catch (KVException e) {
+                result.setMessage(e.getMsg().getMessage());
+            }
+        }
+
+        List<WriteLock> cacheLocks = lockSets(valid);
+        try {
+            Set<String> misses = new LinkedHashSet<>();
+            for (KVPair result : results) {
+                if (result.getMessage() == null) {
+                    result.setValue(dataCache.get(result.getKey()));
+                    if (result.getValue() == null && dataStore.mightContain(result.getKey())) {
+                        misses.add(result.getKey());
+                    }
+                }
+            }
+
+            Map<String, String> found = Collections.emptyMap();
+            if (!misses.isEmpty()) {
+                if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+                    KVLog.log(KVLog.Level.TRACE, "Cache Miss: Looking in Data Store for %d keys", misses.size());
+                }
+                List<Lock> storeRLocks = lockStripes(misses, false);
+                try {
+                    found = dataStore.multiGet(misses);
+                } finally {
+                    unlockStripes(storeRLocks);
+                }
+
+                for (Map.Entry<String, String> entry : found.entrySet()) {
+                    dataCache.put(entry.getKey(), entry.getValue());
+                }
+            }
+            for (KVPair result : results) {
+                if (result.getMessage() == null && result.getValue() == null) {
+                    result.setValue(found.get(result.getKey()));
+                    if (result.getValue() == null) {
+                        result.setMessage(KVStore.keyNotFound(result.getKey()));
+                    }
+                }
+            }
+        } catch (KVException e) {
+            for (KVPair result : results) {
+                if (result.getMessage() == null && result.getValue() == null) {
+                    result.setMessage(e.getMsg().getMessage());
+                }
+            }
+        } finally {
+            // Must be called before return or abnormal exit
+            for (String key : keys) {
+                AutoGrader.agKVServerGetFinished(key);
+            }
+            unlockSets(cacheLocks);
+        }
+        return results;
+    }
+
+    /**
+     * Store many entries at once, locking each cache set and store stripe
+     * involved once for the whole batch.
+     * @param pairs the keys with the values to store
+     * @return one entry per pair, in order, whose message is "Success" or the error for it
+     */
+    public List<KVPair> multiPut(List<KVPair> pairs) {
+        for (KVPair pair : pairs) {
+            AutoGrader.agKVServerPutStarted(pair.getKey(), pair.getValue());
+        }
+
+        List<KVPair> results = new ArrayList<>(pairs.size());
+        List<KVPair> valid = new ArrayList<>(pairs.size());
+        List<String> validKeys = new ArrayList<>(pairs.size());
+        for (KVPair pair : pairs) {
+            KVPair result = new KVPair(pair.getKey());
+            results.add(result);
+            try {
+                checkKeySize(pair.getKey());
+                checkValueSize(pair.getValue());
+                valid.add(pair);
+                validKeys.add(pair.getKey());
+                result.setMessage("Success");
+            } catch (KVException e) {
+                result.setMessage(e.getMsg().getMessage());
+            }
+        }
+
+        List<WriteLock> cacheLocks = lockSets(validKeys);
+        try {
+            List<Lock> storeWrLocks = lockStripes(validKeys, true);
+            try {
+                if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+                    KVLog.log(KVLog.Level.TRACE, "putting %d entries", valid.size());
+                }
+                if (!valid.isEmpty()) {
+                    dataStore.multiPut(valid);
+                }
+                for (KVPair pair : valid) {
+                    dataCache.put(pair.getKey(), pair.getValue());
+                }
+            } finally {
+                unlockStripes(storeWrLocks);
+            }
+            dataStore.awaitDurable();
+        } catch (KVException e) {
+            for (KVPair result : results) {
+                if ("Success".equals(result.getMessage())) {
+                    result.setMessage(e.getMsg().getMessage());
+                }
+            }
+        } finally {
+            // Must be called before return or abnormal exit
+            for (KVPair pair : pairs) {
+                AutoGrader.agKVServerPutFinished(pair.getKey(), pair.getValue());
+            }
+            unlockSets(cacheLocks);
+        }
+        return results;
+    }
+
+    /**
+     * Remove many keys at once, locking each cache set and store stripe
+     * involved once for the whole batch.
+     * @param keys the keys to remove
+     * @return one entry per key, in order, whose message is "Success" or the error for it
+     */
+    public List<KVPair> multiDel(List<String> keys) {
+        for (String key : keys) {
+            AutoGrader.agKVServerDelStarted(key);
+        }
+
+        List<KVPair> results = new ArrayList<>(keys.size());
+        List<KVPair> pending = new ArrayList<>(keys.size());
+        List<String> valid = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            KVPair result = new KVPair(key);
+            results.add(result);
+            try {
+                checkKeySize(key);
+                valid.add(key);
+            } catch (KVException e) {
+                result.setMessage(e.getMsg().getMessage());
+            }
+        }
+
+        List<WriteLock> cacheLocks = lockSets(valid);
+        try {
+            List<String> candidates = new ArrayList<>(valid.size());
+            for (KVPair result : results) {
+                if (result.getMessage() == null) {
+                    if (dataStore.mightContain(result.getKey())) {
+                        pending.add(result);
+                        candidates.add(result.getKey());
+                    } else {
+                        result.setMessage(KVStore.keyNotFound(result.getKey()));
+                    }
+                }
+            }
+
+            List<Lock> storeWrLocks = lockStripes(candidates, true);
+            try {
+                boolean removed[] = candidates.isEmpty() ? new boolean[0] : dataStore.multiDel(candidates);
+                for (int i = 0; i < removed.length; i++) {
+                    KVPair result = pending.get(i);
+                    if (removed[i]) {
+                        dataCache.del(result.getKey());
+                        result.setMessage("Success");
+                    } else {
+                        result.setMessage(KVStore.keyNotFound(result.getKey()));
+                    }
+                }
+            } finally {
+                unlockStripes(storeWrLocks);
+            }
+            dataStore.awaitDurable();
+        } catch (KVException e) {
+            for (KVPair result : pending) {
+                result.setMessage(e.getMsg().getMessage());
+            }
+        } finally {
+            // Must be called before return or abnormal exit
+            for (String key : keys) {
+                AutoGrader.agKVServerDelFinished(key);
+            }
+            unlockSets(cacheLocks);
+        }
+        return results;
+    }
+
+    /**
+     * Read entries in key order, straight from the store: the cache holds
+     * nothing the store does not. No locks are taken, so each entry is a
+     * value its key held during the scan, but the entries are not a snapshot.
+     * @param from the least key to return, or null to start at the first key
+     * @param to the key to stop before, or null for no upper bound
+     * @param prefix the prefix every key returned starts with, or null for any key
+     * @param limit most entries to return
+     * @return the entries, in key order
+     * @throws KVException if a bound is oversized, the limit is not positive, or the store cannot scan
+     */
+    public List<KVPair> scan(String from, String to, String prefix, int limit) throws KVException {
+        for (String bound : new String[] {from, to, prefix}) {
+            if (bound != null && bound.length() > MAX_KEY_SIZE) {
+                throw new KVException(new KVMessage("resp", OVERSIZED_KEY));
+            }
+        }
+        if (limit <= 0) {
+            throw new KVException(new KVMessage("resp", MSG_FORMAT));
+        }
+        if (prefix != null) {
+            // Keys starting with the prefix are those from it up to its successor
+            if (from == null || from.compareTo(prefix) < 0) {
+                from = prefix;
+            }
+            String end = prefixEnd(prefix);
+            if (end != null && (to == null || to.compareTo(end) > 0)) {
+                to = end;
+            }
+        }
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "scanning [%s, %s) for %d entries", from, to, limit);
+        }
+        return dataStore.scan(from, to, limit);
+    }
+
+    /**
+     * @return the least string greater than every string starting with the
+     * prefix, or null if there is none, when it is all Character.MAX_VALUE
+     */
+    static String prefixEnd(String prefix) {
+        for (int i = prefix.length() - 1; i >= 0; i--) {
+            char c = prefix.charAt(i);
+            if (c != Character.MAX_VALUE) {
+                return prefix.substring(0, i) + (char) (c + 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lock the cache sets holding the given keys, each once and in set order
+     * so that concurrent batches cannot deadlock with each other.
+     * @return the locks taken, for {@link #unlockSets(List)}
+     */
+    private List<WriteLock> lockSets(Collection<String> keys) {
+        TreeMap<Integer, WriteLock> locks = new TreeMap<>();
+        for (String key : keys) {
+            locks.putIfAbsent(dataCache.getSetId(key), dataCache.getWriteLock(key));
+        }
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Locking %d Cache sets", locks.size());
+        }
+        List<WriteLock> taken = new ArrayList<>(locks.size());
+        for (WriteLock lock : locks.values()) {
+            lock.lock();
+            taken.add(lock);
+        }
+        return taken;
+    }
+
+    private void unlockSets(List<WriteLock> locks) {
+        KVLog.log(KVLog.Level.TRACE, "Unlocking Cache sets");
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * Lock the store stripes holding the given keys, each once and in stripe
+     * order. Taken after the keys' cache sets, as everywhere else.
+     * @param write whether to take the write locks rather than the read locks
+     * @return the locks taken, for {@link #unlockStripes(List)}
+     */
+    private List<Lock> lockStripes(Collection<String> keys, boolean write) {
+        TreeMap<Integer, Lock> locks = new TreeMap<>();
+        for (String key : keys) {
+            ReentrantReadWriteLock lock = dataStore.getLock(key);
+            locks.putIfAbsent(dataStore.getStripe(key), write ? lock.writeLock() : lock.readLock());
+        }
+        if (KVLog.isEnabled(KVLog.Level.TRACE)) {
+            KVLog.log(KVLog.Level.TRACE, "Locking %d Store stripes", locks.size());
+        }
+        List<Lock> taken = new ArrayList<>(locks.size());
+        for (Lock lock : locks.values()) {
+            lock.lock();
+            taken.add(lock);
+        }
+        return taken;
+    }
+
+    private void unlockStripes(List<Lock> locks) {
+        KVLog.log(KVLog.Level.TRACE, "Unlocking Store stripes");
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    /**
+     * Fail fast, before any store access, for a key the store's filter rules out.
+     * Must hold the key's cache set lock, so the key cannot be stored meanwhile.
+     */
+    private void checkMightContain(String key) throws KVException {
+        if (!dataStore.mightContain(key)) {
+            KVLog.log(KVLog.Level.TRACE, "Filtered: %s is not in the Data Store", key);
+            throw new KVException(new KVMessage("resp", KVStore.keyNotFound(key)));
         }
     }
 
@@ -0,0 +1,89 @@
+package edu.berkeley.cs162;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A store KVServer can keep its data in, behind the cache. KVServer holds
+ * the lock of every key a call touches around it: the read lock for lookups
+ * and the write lock for changes.
+ */
+public interface KVStorageEngine extends KeyValueInterface, Closeable {
+    /**
+     * Look up several keys with a single access to the backing store.
+     * @param keys the keys to look up
+     * @return the values found, by key; keys that do not exist are left out
+     * @throws KVException if the values could not be read
+     */
+    public Map<String, String> multiGet(Collection<String> keys) throws KVException;
+
+    /**
+     * Store several entries with a single access to the backing store.
+     * Later entries for the same key win.
+     * @param pairs keys with the values to store
+     * @throws KVException if the entries could not be stored, in which case none are
+     */
+    public void multiPut(List<KVPair> pairs) throws KVException;
+
+    /**
+     * Remove several keys with a single access to the backing store.
+     * @param keys the keys to remove, in order
+     * @return for each key, whether it existed and was removed
+     * @throws KVException if the keys could not be removed, in which case none are
+     */
+    public boolean[] multiDel(List<String> keys) throws KVException;
+
+    /**
+     * Wait until every change the calling thread has made is on disk. Changes
+     * may return before that so that writers can share the cost of a flush;
+     * this is meant to be called after the lock is released.
+     * @throws KVException if the changes could not be made durable
+     */
+    public void awaitDurable() throws KVException;
+
+    /**
+     * The lock guarding a key. Keys are spread over stripes with a lock each,
+     * so that calls on keys in different stripes can run at the same time; an
+     * engine that applies changes one at a time has a single stripe.
+     */
+    public ReentrantReadWriteLock getLock(String key);
+
+    /**
+     * @return the stripe holding the key, counting from 0. Locks of several
+     * stripes are taken in increasing stripe order, so that callers cannot deadlock.
+     */
+    public int getStripe(String key);
+
+    /**
+     * Cheaply rule out keys that are not in the store, so that misses need
+     * not pay for a store access. May be called without holding the lock.
+     * @return false if the key is certainly not in the store; true if it may be
+     */
+    public default boolean mightContain(String key) {
+        return true;
+    }
+
+    /**
+     * Read entries in key order, comparing keys as Strings. May be called
+     * without holding any lock: each entry is a value its key held during
+     * the scan, but the scan as a whole is not a snapshot.
+     * @param from the least key to return, or null to start at the first key
+     * @param to the key to stop before, or null for no upper bound
+     * @param limit most entries to return
+     * @return the entries, in key order
+     * @throws KVException if the entries could not be read, or the engine keeps no key order
+     */
+    public default List<KVPair> scan(String from, String to, int limit) throws KVException {
+        throw new KVException(new KVMessage("resp", "Scan Error: Not supported by this store"));
+    }
+
+    /**
+     * Release the files the engine holds. Changes made afterwards fail.
+     */
+    @Override
+    public void close() throws IOException;
+}
@@ -45,12 +45,21 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 
 /**
@@ -58,20 +67,505 @@ import java.util.stream.IntStream;
  * or some other backing store. For this project, we simulate the disk like
  * system using a manual delay.
  *
+ * A store given a log file is durable: every change is queued on a
+ * WriteAheadLog before it is made in memory, and the log is replayed when
+ * the store is created. Reads are still served from memory alone. So that
+ * concurrent writers can share an fsync, changes return once queued; a
+ * writer calls awaitDurable, normally after releasing the key's lock, before
+ * reporting success.
+ *
+ * A CountingBloomFilter tracks which keys are in the store, kept in step by
+ * every change, so that a server can turn away lookups and removals of keys
+ * that were never stored without taking the lock or paying the store delay.
+ *
+ * Snapshots are copy-on-write, so writers are held up only for the moment
+ * a snapshot begins. From then until it is written, each change first saves
+ * the key's previous value, or its absence, and the snapshot is made of the
+ * saved values together with the untouched entries of the live map. A
+ * durable store also checkpoints: a snapshot taken as the log is rolled over
+ * to a new segment lets every older segment be deleted. This happens in the
+ * background whenever the current segment grows past a limit.
+ *
+ * On startup only the log segments after the newest checkpoint are
+ * replayed before the store is ready; the checkpoint itself is then loaded
+ * in the background, several chunks at a time, into a map sized for it.
+ * Meanwhile lookups of keys already in memory are answered at once and
+ * only misses wait for the load to finish. A change marks its key as
+ * superseded so that the checkpoint's older value is not loaded over it.
+ *
+ * Besides the map, keys are kept in order in a ConcurrentSkipListSet, so
+ * that ranges and prefixes can be scanned without sorting the store. Like
+ * the filter, the index gains a key before it is stored and loses it after
+ * it is removed; a scan skips indexed keys that have no value.
+ *
+ * A store given a SlabAllocator keeps its values off the heap, in an
+ * OffHeapMap, so that a large store does not lengthen garbage collections.
+ *
+ * Keys are spread over STRIPES lock stripes by hash. The map and the filter
+ * are safe for concurrent use, and the log takes changes from any number of
+ * threads, so calls on keys in different stripes run side by side; only
+ * beginning a snapshot and restoring take every stripe.
+ *
  *
  *
  */
-public class KVStore implements KeyValueInterface {
+public class KVStore implements KVStorageEngine {
+    /**
+     * Always a ConcurrentHashMap or an OffHeapMap, so that a snapshot can walk it while it changes
+     */
     private Map<String, String> store = null;
-    private ReentrantReadWriteLock lock;
+    /**
+     * Where values are kept if not on the heap
+     */
+    private final SlabAllocator slabs;
+    /**
+     * Every key in the store, and few others
+     */
+    private volatile CountingBloomFilter filter = null;
+    /**
+     * Every key in the store, in order, for scans. Kept in step as the filter is
+     */
+    private volatile ConcurrentSkipListSet<String> index = null;
+    /**
+     * Lock stripes; a key's stripe is picked by its hash
+     */
+    private final ReentrantReadWriteLock stripes[] = new ReentrantReadWriteLock[STRIPES];
+    /**
+     * Read without a lock by scans, so that they can wait for what they read to be on disk
+     */
+    private volatile WriteAheadLog log = null;
+    /**
+     * The segment last rolled over from, which may still be writing out its queue
+     */
+    private volatile WriteAheadLog rolledLog = null;
+    /**
+     * The first log segment; later ones get a number after the name
+     */
+    private Path logFile = null;
+    private long logSegment = 0;
+    private int maxBatchSize = WriteAheadLog.DEFAULT_MAX_BATCH_SIZE;
+    private long maxDelayMicros = 0;
+    private long checkpointLogSize = CHECKPOINT_LOG_SIZE;
+    private boolean closed = false;
+
+    /**
+     * The log and sequence number of the last change a thread logged
+     */
+    private static class LastChange {
+        WriteAheadLog log = null;
+        long lsn = 0;
+    }
+
+    private final ThreadLocal<LastChange> lastChange = ThreadLocal.withInitial(LastChange::new);
+
+    /**
+     * Held while a snapshot is written; one at a time
+     */
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    /**
+     * While a snapshot is being written, the value each key had when it
+     * began, saved by the first change to the key since; otherwise null
+     */
+    private volatile Map<String, String> preImages = null;
+    private final AtomicBoolean checkpointing = new AtomicBoolean(false);
+
+    /**
+     * A checkpoint being loaded in the background
+     */
+    private static class Loading {
+        /**
+         * Keys changed since startup, whose value in the checkpoint is out of date
+         */
+        final Set<String> superseded = ConcurrentHashMap.newKeySet();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile IOException error = null;
+
+        /**
+         * Wait for the load to end.
+         * @throws IOException if it failed
+         */
+        void await() throws IOException {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    /**
+     * The checkpoint still being loaded, if any; left in place if the load fails
+     */
+    private volatile Loading loading = null;
+    private static final int LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Saved as the previous value of a key that did not exist. Compared by identity.
+     */
+    private static final String ABSENT = new String("<absent>");
+    private static final String SNAPSHOT_SUFFIX = ".snapshot";
+    /**
+     * Size of the current log segment beyond which a checkpoint is started
+     */
+    static final long CHECKPOINT_LOG_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Keys the filter is sized for; beyond this false positives grow
+     */
+    private static final int EXPECTED_KEYS = 100000;
+    /**
+     * Number of lock stripes; a power of two
+     */
+    static final int STRIPES = 64;
 
     public KVStore() {
+        this((SlabAllocator) null);
+    }
+
+    /**
+     * @param slabs where to keep values off the heap, or null to keep them on it
+     */
+    public KVStore(SlabAllocator slabs) {
+        this.slabs = slabs;
         resetStore();
-        lock = new ReentrantReadWriteLock();
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Create a durable store, recovering whatever the log already holds.
+     * @param logFile the write-ahead log, created if it does not exist; its
+     * later segments and checkpoints are kept beside it under the same name
+     * followed by a number
+     * @throws IOException if the log cannot be opened or read
+     */
+    public KVStore(String logFile) throws IOException {
+        this(logFile, WriteAheadLog.DEFAULT_MAX_BATCH_SIZE, 0);
+    }
+
+    /**
+     * @param logFile the write-ahead log, created if it does not exist
+     * @param maxBatchSize most changes forced to disk by one fsync
+     * @param maxDelayMicros longest a change waits for others to share its fsync
+     * @throws IOException if the log cannot be opened or read
+     */
+    public KVStore(String logFile, int maxBatchSize, long maxDelayMicros) throws IOException {
+        this(logFile, maxBatchSize, maxDelayMicros, null);
+    }
+
+    /**
+     * @param logFile the write-ahead log, created if it does not exist
+     * @param maxBatchSize most changes forced to disk by one fsync
+     * @param maxDelayMicros longest a change waits for others to share its fsync
+     * @param slabs where to keep values off the heap, or null to keep them on it
+     * @throws IOException if the log cannot be opened or read
+     */
+    public KVStore(String logFile, int maxBatchSize, long maxDelayMicros, SlabAllocator slabs) throws IOException {
+        this(slabs);
+        this.logFile = Paths.get(logFile);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMicros = maxDelayMicros;
+
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        TreeMap<Long, Path> checkpoints = new TreeMap<>();
+        listLogFiles(segments, checkpoints);
+        long start = checkpoints.isEmpty() ? 0 : checkpoints.lastKey();
+
+        // The changes made since the checkpoint, with ABSENT for removals
+        Map<String, String> recent = new HashMap<>();
+        boolean cleared[] = new boolean[1];
+        WriteAheadLog.Visitor visitor = new WriteAheadLog.Visitor() {
+            public void put(String key, String value) {
+                recent.put(key, value);
+            }
+
+            public void del(String key) {
+                recent.put(key, ABSENT);
+            }
+
+            public void clear() {
+                recent.clear();
+                cleared[0] = true;
+            }
+        };
+        for (Map.Entry<Long, Path> segment : segments.tailMap(start).entrySet()) {
+            if (log != null) {
+                log.close();
+            }
+            log = new WriteAheadLog(segment.getValue(), maxBatchSize, maxDelayMicros);
+            logSegment = segment.getKey();
+            log.replay(visitor);
+        }
+        if (log == null) {
+            log = openSegment(start);
+            logSegment = start;
+        }
+
+        SnapshotFile checkpoint = null;
+        if (!checkpoints.isEmpty() && !cleared[0]) {
+            checkpoint = new SnapshotFile(checkpoints.lastEntry().getValue());
+        }
+        long expected = recent.size() + (checkpoint == null ? 0 : checkpoint.getEntryCount());
+        int capacity = (int) Math.min(Integer.MAX_VALUE / 2, expected);
+        store = newMap(capacity);
+        filter = new CountingBloomFilter(Math.max(EXPECTED_KEYS, capacity));
+        for (Map.Entry<String, String> entry : recent.entrySet()) {
+            if (entry.getValue() != ABSENT) {
+                store.put(entry.getKey(), entry.getValue());
+                filter.add(entry.getKey());
+                index.add(entry.getKey());
+            }
+        }
+        deleteBefore(start);
+
+        if (checkpoint != null) {
+            Loading load = new Loading();
+            load.superseded.addAll(recent.keySet());
+            loading = load;
+            SnapshotFile file = checkpoint;
+            Thread t = new Thread(() -> load(file, load), "KVStore-loader");
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Body of the loader thread: read the checkpoint into the store on
+     * several threads, leaving out superseded keys.
+     */
+    private void load(SnapshotFile checkpoint, Loading load) {
+        Map<String, String> target = store;
+        long begin = System.nanoTime();
+        try (SnapshotFile file = checkpoint) {
+            long entries = file.readParallel(LOADER_THREADS, (key, value) -> target.compute(key, (k, current) -> {
+                // Atomic with a change's removal, which supersedes the key first
+                if (current != null || load.superseded.contains(k)) {
+                    return current;
+                }
+                filter.add(k);
+                index.add(k);
+                return value;
+            }));
+            KVLog.log(KVLog.Level.INFO, "KVStore: loaded %d entries from %s in %d ms", entries, checkpoint.getFile(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+            loading = null;
+        } catch (IOException | RuntimeException e) {
+            KVLog.log(KVLog.Level.ERROR, "KVStore: could not load checkpoint: %s", e);
+            load.error = e instanceof IOException ? (IOException) e : new IOException(e);
+        } finally {
+            load.done.countDown();
+        }
+    }
+
+    /**
+     * The key's value, waiting for the checkpoint to load if it might be in it.
+     * @return the value, or null if the key is not in the store
+     * @throws KVException if the checkpoint could not be loaded
+     */
+    private String current(String key) throws KVException {
+        String value = store.get(key);
+        Loading load = loading;
+        if (value == null && load != null && !load.superseded.contains(key)) {
+            try {
+                load.await();
+            } catch (IOException e) {
+                throw loadError(e);
+            }
+            value = store.get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Keep the checkpoint being loaded, if any, from loading over a change to
+     * the key. Must be called before the key is changed.
+     * @throws KVException if the checkpoint could not be loaded, as the store is then incomplete
+     */
+    private void supersede(String key) throws KVException {
+        Loading load = loading;
+        if (load != null) {
+            if (load.error != null) {
+                throw loadError(load.error);
+            }
+            load.superseded.add(key);
+        }
+    }
+
+    private static KVException loadError(IOException e) throws KVException {
+        return new KVException(new KVMessage("resp", "IO Error: Could not load checkpoint: " + e.getMessage()));
+    }
+
+    /**
+     * Find the log segments and checkpoints beside the log file, by number.
+     * Deletes checkpoints that were never finished.
+     */
+    private void listLogFiles(Map<Long, Path> segments, Map<Long, Path> checkpoints) throws IOException {
+        if (Files.exists(logFile)) {
+            segments.put(0L, logFile);
+        }
+        String base = logFile.getFileName().toString() + ".";
+        Path directory = logFile.toAbsolutePath().getParent();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(base)) {
+                    continue;
+                }
+                String suffix = name.substring(base.length());
+                // Unfinished checkpoints, and checkpoints staged by a restore that never took over
+                if (suffix.endsWith(SNAPSHOT_SUFFIX + ".tmp") || suffix.endsWith(SNAPSHOT_SUFFIX + ".tmp.tmp")) {
+                    Files.delete(file);
+                    continue;
+                }
+                boolean checkpoint = suffix.endsWith(SNAPSHOT_SUFFIX);
+                if (checkpoint) {
+                    suffix = suffix.substring(0, suffix.length() - SNAPSHOT_SUFFIX.length());
+                }
+                try {
+                    (checkpoint ? checkpoints : segments).put(Long.parseLong(suffix), file);
+                } catch (NumberFormatException e) {
+                    // Not one of ours
+                }
+            }
+        }
+    }
+
+    private Path segmentPath(long segment) {
+        return segment == 0 ? logFile : logFile.resolveSibling(logFile.getFileName() + "." + segment);
+    }
+
+    private Path checkpointPath(long segment) {
+        return logFile.resolveSibling(logFile.getFileName() + "." + segment + SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * Create an empty log segment and make it ready for appends.
+     */
+    private WriteAheadLog openSegment(long segment) throws IOException {
+        WriteAheadLog next = new WriteAheadLog(segmentPath(segment), maxBatchSize, maxDelayMicros);
+        try {
+            next.replay(new WriteAheadLog.Visitor() {
+                public void put(String key, String value) {
+                }
+
+                public void del(String key) {
+                }
+
+                public void clear() {
+                }
+            });
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+        return next;
+    }
+
+    /**
+     * Delete the log segments and checkpoints made obsolete by the checkpoint for a segment.
+     */
+    private void deleteBefore(long segment) throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        TreeMap<Long, Path> checkpoints = new TreeMap<>();
+        listLogFiles(segments, checkpoints);
+        for (Path file : segments.headMap(segment).values()) {
+            Files.delete(file);
+        }
+        for (Path file : checkpoints.headMap(segment).values()) {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * @param bytes size of the current log segment beyond which a checkpoint is started in the background
+     */
+    public void setCheckpointLogSize(long bytes) {
+        checkpointLogSize = bytes;
+    }
+
+    /**
+     * Close the write-ahead log, if there is one. Changes made afterwards fail.
+     */
+    @Override
+    public void close() throws IOException {
+        snapshotLock.lock();
+        try {
+            closed = true;
+            if (log != null) {
+                log.close();
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
     }
 
     private void resetStore() {
-        store = new HashMap<String, String>();
+        store = newMap(0);
+        filter = new CountingBloomFilter(EXPECTED_KEYS);
+        index = new ConcurrentSkipListSet<>();
+    }
+
+    /**
+     * @param expected the number of entries to size the map for
+     */
+    private Map<String, String> newMap(int expected) {
+        int capacity = (int) Math.min(Integer.MAX_VALUE, expected * 4L / 3 + 1);
+        if (slabs != null) {
+            return new OffHeapMap(slabs, capacity);
+        }
+        return new ConcurrentHashMap<String, String>(capacity);
+    }
+
+    /**
+     * Store a value without decoding the one it replaces, which is never used.
+     */
+    private void storePut(String key, String value) {
+        if (store instanceof OffHeapMap) {
+            ((OffHeapMap) store).set(key, value);
+        } else {
+            store.put(key, value);
+        }
+    }
+
+    /**
+     * Remove a key without decoding its value.
+     * @return whether the key was present
+     */
+    private boolean storeRemove(String key) {
+        if (store instanceof OffHeapMap) {
+            return ((OffHeapMap) store).delete(key);
+        }
+        return store.remove(key) != null;
+    }
+
+    /**
+     * Free the values of a map that is no longer used, if they are off the heap.
+     */
+    private static void discard(Map<String, String> map) {
+        if (map instanceof OffHeapMap) {
+            map.clear();
+        }
+    }
+
+    /**
+     * Safe to call without the lock: a key is added to the filter before it
+     * is stored and removed from the filter after it is removed from the store.
+     * While a checkpoint is loading the filter is incomplete, so every key may be present.
+     */
+    @Override
+    public boolean mightContain(String key) {
+        return loading != null || filter.mightContain(key);
     }
 
     public void put(String key, String value) throws KVException {
@@ -79,7 +573,21 @@ public class KVStore implements KeyValueInterface {
 
         try {
             putDelay();
-            store.put(key, value);
+            supersede(key);
+            if (log != null) {
+                try {
+                    logged(log.put(key, value));
+                } catch (IOException e) {
+                    throw logError(e);
+                }
+            }
+            preserve(key);
+            if (!store.containsKey(key)) {
+                filter.add(key);
+                index.add(key);
+            }
+            storePut(key, value);
+            maybeCheckpoint();
         } finally {
             AutoGrader.agStorePutFinished(key, value);
         }
@@ -90,9 +598,9 @@ public class KVStore implements KeyValueInterface {
 
         try {
             getDelay();
-            String retVal = store.get(key);
+            String retVal = current(key);
             if (retVal == null) {
-                KVMessage msg = new KVMessage("resp", "key \"" + key + "\" does not exist in store");
+                KVMessage msg = new KVMessage("resp", keyNotFound(key));
                 throw new KVException(msg);
             }
             return retVal;
@@ -106,18 +614,374 @@ public class KVStore implements KeyValueInterface {
 
         try {
             delDelay();
-            if (store.containsKey(key)) {
-                store.remove(key);
+            if (current(key) != null) {
+                supersede(key);
+                if (log != null) {
+                    try {
+                        logged(log.del(Collections.singletonList(key)));
+                    } catch (IOException e) {
+                        throw logError(e);
+                    }
+                }
+                preserve(key);
+                storeRemove(key);
+                filter.remove(key);
+                index.remove(key);
+                maybeCheckpoint();
             } else {
-                throw new KVException(new KVMessage("resp", "key \"" + key + "\" does not exist in store"));
+                throw new KVException(new KVMessage("resp", keyNotFound(key)));
             }
         } finally {
             AutoGrader.agStoreDelFinished(key);
         }
     }
 
-    public ReentrantReadWriteLock getLock() {
-        return lock;
+    /**
+     * Look up several keys with a single access to the backing store.
+     * @param keys the keys to look up
+     * @return the values found, by key; keys that do not exist are left out
+     * @throws KVException if the checkpoint the store was starting from could not be loaded
+     */
+    public Map<String, String> multiGet(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreGetStarted(key);
+        }
+
+        try {
+            getDelay();
+            Map<String, String> values = new HashMap<>();
+            for (String key : keys) {
+                String value = current(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreGetFinished(key);
+            }
+        }
+    }
+
+    /**
+     * Store several entries with a single access to the backing store.
+     * Later entries for the same key win.
+     * @param pairs keys with the values to store
+     * @throws KVException if the entries could not be logged, in which case none are stored
+     */
+    public void multiPut(List<KVPair> pairs) throws KVException {
+        for (KVPair pair : pairs) {
+            AutoGrader.agStorePutStarted(pair.getKey(), pair.getValue());
+        }
+
+        try {
+            putDelay();
+            for (KVPair pair : pairs) {
+                supersede(pair.getKey());
+            }
+            if (log != null) {
+                try {
+                    logged(log.put(pairs));
+                } catch (IOException e) {
+                    throw logError(e);
+                }
+            }
+            for (KVPair pair : pairs) {
+                preserve(pair.getKey());
+                if (!store.containsKey(pair.getKey())) {
+                    filter.add(pair.getKey());
+                    index.add(pair.getKey());
+                }
+                storePut(pair.getKey(), pair.getValue());
+            }
+            maybeCheckpoint();
+        } finally {
+            for (KVPair pair : pairs) {
+                AutoGrader.agStorePutFinished(pair.getKey(), pair.getValue());
+            }
+        }
+    }
+
+    /**
+     * Remove several keys with a single access to the backing store.
+     * @param keys the keys to remove, in order
+     * @return for each key, whether it existed and was removed
+     * @throws KVException if the removals could not be logged, in which case none are made
+     */
+    public boolean[] multiDel(List<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreDelStarted(key);
+        }
+
+        try {
+            delDelay();
+            List<String> present = new ArrayList<>(keys.size());
+            for (String key : keys) {
+                if (current(key) != null) {
+                    supersede(key);
+                    present.add(key);
+                }
+            }
+            if (log != null && !present.isEmpty()) {
+                try {
+                    logged(log.del(present));
+                } catch (IOException e) {
+                    throw logError(e);
+                }
+            }
+            boolean removed[] = new boolean[keys.size()];
+            for (int i = 0; i < removed.length; i++) {
+                preserve(keys.get(i));
+                removed[i] = storeRemove(keys.get(i));
+                if (removed[i]) {
+                    filter.remove(keys.get(i));
+                    index.remove(keys.get(i));
+                }
+            }
+            maybeCheckpoint();
+            return removed;
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreDelFinished(key);
+            }
+        }
+    }
+
+    /**
+     * Read entries in key order, from the index and the map. Waits for a
+     * checkpoint being loaded, as the index is incomplete until then. Scans
+     * take no locks, so they may see changes that are not yet durable; on a
+     * durable store the scan waits for them to reach the disk before it returns.
+     * @param from the least key to return, or null to start at the first key
+     * @param to the key to stop before, or null for no upper bound
+     * @param limit most entries to return
+     * @return the entries, in key order
+     * @throws KVException if the checkpoint the store was starting from could not be loaded,
+     *         or the log failed before the entries read could be written
+     */
+    @Override
+    public List<KVPair> scan(String from, String to, int limit) throws KVException {
+        getDelay();
+        Loading load = loading;
+        if (load != null) {
+            try {
+                load.await();
+            } catch (IOException e) {
+                throw loadError(e);
+            }
+        }
+
+        List<KVPair> entries = new ArrayList<>(Math.min(limit, 1024));
+        if (from != null && to != null && from.compareTo(to) >= 0) {
+            return entries;
+        }
+        Map<String, String> values = store;
+        NavigableSet<String> keys = index;
+        if (from != null) {
+            keys = keys.tailSet(from, true);
+        }
+        if (to != null) {
+            keys = keys.headSet(to, false);
+        }
+        for (String key : keys) {
+            if (entries.size() == limit) {
+                break;
+            }
+            String value = values.get(key);
+            // Indexed but not yet stored, or removed since
+            if (value != null) {
+                entries.add(new KVPair(key, value));
+            }
+        }
+        awaitQueued();
+        return entries;
+    }
+
+    /**
+     * Wait until every change logged so far is on disk. Each change is logged
+     * before it is made in memory, so this covers every value already read.
+     * @throws KVException if the log failed first
+     */
+    private void awaitQueued() throws KVException {
+        // The current segment before the rolled one: once a scan sees a new segment it sees the old one too
+        WriteAheadLog current = log;
+        WriteAheadLog rolled = rolledLog;
+        try {
+            if (rolled != null) {
+                rolled.awaitDurable(rolled.lastLsn());
+            }
+            if (current != null) {
+                current.awaitDurable(current.lastLsn());
+            }
+        } catch (IOException e) {
+            throw logError(e);
+        }
+    }
+
+    /**
+     * @return the error reported for a key that is not in the store
+     */
+    static String keyNotFound(String key) {
+        return "key \"" + key + "\" does not exist in store";
+    }
+
+    /**
+     * Wait until every change this thread has made is on disk. Returns at once
+     * for a store without a log.
+     * @throws KVException if the log failed before the changes could be written
+     */
+    public void awaitDurable() throws KVException {
+        LastChange last = lastChange.get();
+        if (last.log != null) {
+            try {
+                last.log.awaitDurable(last.lsn);
+            } catch (IOException e) {
+                throw logError(e);
+            }
+        }
+    }
+
+    private void logged(long lsn) {
+        LastChange last = lastChange.get();
+        last.log = log;
+        last.lsn = lsn;
+    }
+
+    /**
+     * Save the key's current value for the snapshot being written, if there
+     * is one and the key has not been changed since it began. Must be called
+     * before the key is changed, with the key's write lock held.
+     */
+    private void preserve(String key) {
+        Map<String, String> images = preImages;
+        if (images != null && !images.containsKey(key)) {
+            String value = store.get(key);
+            images.put(key, value == null ? ABSENT : value);
+        }
+    }
+
+    /**
+     * Start a checkpoint in the background if the current log segment has
+     * grown past its limit and none is running. Called by writers.
+     */
+    private void maybeCheckpoint() {
+        if (log == null || log.size() < checkpointLogSize || !checkpointing.compareAndSet(false, true)) {
+            return;
+        }
+        Thread t = new Thread(() -> {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                KVLog.log(KVLog.Level.ERROR, "KVStore: checkpoint failed: %s", e);
+            } finally {
+                checkpointing.set(false);
+            }
+        }, "KVStore-checkpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Write a checkpoint of a durable store beside its log and delete the log
+     * segments it replaces. Writers are held up only while the log is rolled
+     * over to a new segment.
+     * @throws IOException if the checkpoint could not be written; the log is then kept whole
+     */
+    public void checkpoint() throws IOException {
+        if (logFile == null) {
+            throw new IllegalStateException("Only a store with a log can be checkpointed");
+        }
+        snapshotLock.lock();
+        try {
+            if (closed) {
+                throw new IOException("KVStore is closed");
+            }
+            long segment = logSegment + 1;
+            long entries = snapshot(checkpointPath(segment), segment);
+            // Everything before the new segment is in the checkpoint
+            deleteBefore(segment);
+            KVLog.log(KVLog.Level.INFO, "KVStore: checkpointed %d entries to %s", entries, checkpointPath(segment));
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Write a point-in-time snapshot of the store while writers carry on.
+     * Must hold the snapshot lock.
+     * @param segment the log segment to roll over to as the snapshot begins, or 0 to leave the log as it is
+     * @return the number of entries written
+     */
+    private long snapshot(Path file, long segment) throws IOException {
+        Loading load = loading;
+        if (load != null) {
+            load.await();
+        }
+        Map<String, String> images = new ConcurrentHashMap<>();
+        Map<String, String> captured;
+        WriteAheadLog rolled = null;
+        lockAll();
+        try {
+            if (segment > 0) {
+                WriteAheadLog next = openSegment(segment);
+                rolled = log;
+                // Set first, as a scan that sees the new segment then looks for the old one
+                rolledLog = rolled;
+                log = next;
+                logSegment = segment;
+            }
+            captured = store;
+            preImages = images;
+        } finally {
+            unlockAll();
+        }
+
+        try {
+            if (rolled != null) {
+                // Writes everything still queued, for writers waiting on it
+                rolled.close();
+            }
+            // Entries untouched since the snapshot began, then the saved values of the
+            // rest. The value is read before the check, as a change saves the old value
+            // before making it; a key changed in between may be written twice, both
+            // times with its old value.
+            Iterable<Map.Entry<String, String>> entries = () -> Stream.concat(
+                    captured.entrySet().stream().filter(entry -> !images.containsKey(entry.getKey())),
+                    images.entrySet().stream().filter(entry -> entry.getValue() != ABSENT)).iterator();
+            return SnapshotFile.write(file, entries);
+        } finally {
+            preImages = null;
+        }
+    }
+
+    private static KVException logError(IOException e) throws KVException {
+        return new KVException(new KVMessage("resp", "IO Error: Could not log change: " + e.getMessage()));
+    }
+
+    public ReentrantReadWriteLock getLock(String key) {
+        return stripes[getStripe(key)];
+    }
+
+    public int getStripe(String key) {
+        int h = key.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Take the write lock of every stripe, in stripe order, shutting out all
+     * other calls. Must not hold any stripe's lock already.
+     */
+    private void lockAll() {
+        for (ReentrantReadWriteLock stripe : stripes) {
+            stripe.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].writeLock().unlock();
+        }
     }
 
     private void getDelay() {
@@ -173,7 +1037,33 @@ public class KVStore implements KeyValueInterface {
         }
     }
 
+    /**
+     * Write the contents of the store to a binary SnapshotFile, streaming
+     * entries straight to disk so that little more than a chunk of them is
+     * held in memory at once. The snapshot is of the store as it was when the
+     * call began; writers are not held up meanwhile, and the caller should
+     * not hold any of the store's locks.
+     * @param fileName the file to write; it is replaced only once the snapshot is complete
+     */
     public void dumpToFile(String fileName) {
+        snapshotLock.lock();
+        try {
+            long entries = snapshot(Paths.get(fileName), 0);
+            KVLog.log(KVLog.Level.INFO, "KVStore: wrote %d entries to %s", entries, fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
+
+    /**
+     * Write the contents of the store to a file as XML, the format toXML
+     * produces. The whole document is built in memory first, so this is
+     * meant for small stores and for tools that need XML.
+     * @param fileName the file to write
+     */
+    public void dumpToXMLFile(String fileName) {
         byte data[] = this.toXML().getBytes();
         Path file = Paths.get(fileName);
         try {
@@ -185,39 +1075,133 @@ public class KVStore implements KeyValueInterface {
 
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
+     * written by dumpToFile or dumpToXMLFile; the previous contents of the
+     * store are lost. A durable store writes what it read as a checkpoint
+     * for a new log segment before taking every stripe, so that writers are
+     * held up only while the checkpoint is renamed into place and the maps
+     * are swapped.
      * @param fileName the file to be read.
      */
     public void restoreFromFile(String fileName) {
+        Map<String, String> restored = null;
+        snapshotLock.lock();
         try {
-            byte data[] = Files.readAllBytes(Paths.get(fileName));
-            String storeFile = new String(data);
-            resetStore();
+            Loading load = loading;
+            if (load != null) {
+                try {
+                    load.await();
+                } catch (IOException e) {
+                    // The store's contents are about to be replaced anyway
+                }
+            }
+            Path file = Paths.get(fileName);
+            CountingBloomFilter restoredFilter;
+            ConcurrentSkipListSet<String> restoredIndex = new ConcurrentSkipListSet<>();
+            if (SnapshotFile.isSnapshot(file)) {
+                try (SnapshotFile snapshot = new SnapshotFile(file)) {
+                    int expected = (int) Math.min(Integer.MAX_VALUE / 2, snapshot.getEntryCount());
+                    restored = newMap(expected);
+                    restoredFilter = new CountingBloomFilter(Math.max(EXPECTED_KEYS, expected));
+                    Map<String, String> target = restored;
+                    snapshot.readParallel(LOADER_THREADS, (key, value) -> {
+                        if (target.putIfAbsent(key, value) == null) {
+                            restoredFilter.add(key);
+                            restoredIndex.add(key);
+                        }
+                    });
+                }
+            } else {
+                restored = newMap(0);
+                restoredFilter = new CountingBloomFilter(EXPECTED_KEYS);
+                readXML(file, restored, restoredFilter, restoredIndex);
+            }
 
-            Node pairNode, keyNode, valueNode;
-            NodeList pairEles, children;
+            long segment = logSegment + 1;
+            Path staged = null;
+            if (log != null) {
+                // Not yet a checkpoint: startup deletes it if the restore never takes over
+                staged = checkpointPath(segment).resolveSibling(checkpointPath(segment).getFileName() + ".tmp");
+                SnapshotFile.write(staged, restored.entrySet());
+            }
 
-            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-            InputSource source = new InputSource(new StringReader(storeFile));
+            Map<String, String> old;
+            WriteAheadLog rolled = null;
+            long marker = 0;
+            lockAll();
+            try {
+                if (staged != null) {
+                    WriteAheadLog next = openSegment(segment);
+                    try {
+                        // Once the checkpoint is in place, recovery starts from it and the new segment
+                        Files.move(staged, checkpointPath(segment), StandardCopyOption.ATOMIC_MOVE);
+                    } catch (IOException e) {
+                        // The empty segment is harmless: it is replayed after the older checkpoint
+                        next.close();
+                        Files.deleteIfExists(staged);
+                        throw e;
+                    }
+                    rolled = log;
+                    // Set first, as a scan that sees the new segment then looks for the old one
+                    rolledLog = rolled;
+                    log = next;
+                    logSegment = segment;
+                    marker = next.restored();
+                }
+                // The filter and index first, so they never lack a key the store holds
+                filter = restoredFilter;
+                index = restoredIndex;
+                old = store;
+                store = restored;
+                loading = null;
+            } finally {
+                unlockAll();
+            }
+            discard(old);
+            if (rolled != null) {
+                // Writes everything still queued, for writers waiting on it
+                rolled.close();
+                log.awaitDurable(marker);
+                deleteBefore(segment);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (restored != store) {
+                discard(restored);
+            }
+        } finally {
+            snapshotLock.unlock();
+        }
+    }
 
-            Document doc = dbf.newDocumentBuilder().parse(source);
-            doc.getDocumentElement().normalize();
+    private static void readXML(Path file, Map<String, String> restored, CountingBloomFilter restoredFilter,
+            Set<String> restoredIndex) throws IOException, ParserConfigurationException, SAXException {
+        byte data[] = Files.readAllBytes(file);
+        String storeFile = new String(data);
 
-            pairEles = doc.getElementsByTagName("KVPair");
+        Node pairNode, keyNode, valueNode;
+        NodeList pairEles, children;
 
-            for (int i = 0; i < pairEles.getLength(); i++) {
-                pairNode = pairEles.item(i);
-                children = pairNode.getChildNodes();
+        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+        InputSource source = new InputSource(new StringReader(storeFile));
 
-                keyNode = children.item(0);
-                valueNode = children.item(1);
-                String key = keyNode.getTextContent();
-                String value = valueNode.getTextContent();
+        Document doc = dbf.newDocumentBuilder().parse(source);
+        doc.getDocumentElement().normalize();
 
-                store.put(key, value);
+        pairEles = doc.getElementsByTagName("KVPair");
+
+        for (int i = 0; i < pairEles.getLength(); i++) {
+            pairNode = pairEles.item(i);
+            children = pairNode.getChildNodes();
+
+            keyNode = children.item(0);
+            valueNode = children.item(1);
+            String key = keyNode.getTextContent();
+            String value = valueNode.getTextContent();
+
+            if (restored.put(key, value) == null) {
+                restoredFilter.add(key);
+                restoredIndex.add(key);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
     }
 }
@@ -0,0 +1,525 @@
+package edu.berkeley.cs162;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming reader and writer for the XML form of a KVMessage:
+ *
+ * <pre>
+ * &lt;KVMessage type="..." [id="..."]&gt;&lt;Key/&gt;&lt;Value/&gt;&lt;Message/&gt;&lt;/KVMessage&gt;
+ * </pre>
+ *
+ * Batch messages instead hold one
+ * &lt;KVPair&gt;&lt;Key/&gt;&lt;Value/&gt;&lt;Message/&gt;&lt;/KVPair&gt; element per key.
+ * A scan request adds &lt;EndKey/&gt;, &lt;Prefix/&gt; and &lt;Limit/&gt; to its
+ * optional start key, and a scan response holds a KVPair per entry found
+ * after the key, if any, where the next page starts.
+ *
+ * On the wire the document is carried as a single Java serialized String.
+ * Rather than going through a DOM and Object streams, this class writes and
+ * reads that framing directly and parses the document with a StAX reader.
+ * The bytes produced are identical to the DOM/Transformer/ObjectOutputStream
+ * pipeline this replaces, so either end may still be running the old code.
+ *
+ * A document is parsed straight from the bytes it arrived in, decoding them
+ * to chars only as the parser asks for them, so a value is copied once on
+ * its way from the frame into its String. Nothing is cached per thread, as
+ * handlers on virtual threads would never reuse it.
+ */
+public class KVXmlCodec {
+    private static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+
+    private static final int STREAM_MAGIC = 0xACED;
+    private static final int STREAM_VERSION = 5;
+    private static final int TC_NULL = 0x70;
+    private static final int TC_STRING = 0x74;
+    private static final int TC_LONGSTRING = 0x7C;
+
+    private static final int INITIAL_BUFFER = 4 * 1024;
+
+    private static final String XML_ERR = "XML Error: Received unparseable message";
+
+    /**
+     * Shared by every thread; only creating a reader is synchronized, as
+     * factories are not guaranteed to be thread-safe
+     */
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    /**
+     * Reads the chars of a Java modified UTF-8 string straight out of the
+     * bytes it was received in.
+     */
+    private static class ModifiedUtf8Reader extends Reader {
+        private final byte bytes[];
+        private int pos;
+        private final int end;
+
+        ModifiedUtf8Reader(byte bytes[], int offset, int length) {
+            this.bytes = bytes;
+            this.pos = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read(char cbuf[], int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int n = 0;
+            while (n < len && pos < end) {
+                int b = bytes[pos++] & 0xFF;
+                if (b < 0x80) {
+                    cbuf[off + n++] = (char) b;
+                } else if ((b & 0xE0) == 0xC0) {
+                    if (pos >= end) {
+                        throw new UTFDataFormatException();
+                    }
+                    int b2 = bytes[pos++];
+                    if ((b2 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException();
+                    }
+                    cbuf[off + n++] = (char) (((b & 0x1F) << 6) | (b2 & 0x3F));
+                } else if ((b & 0xF0) == 0xE0) {
+                    if (pos + 1 >= end) {
+                        throw new UTFDataFormatException();
+                    }
+                    int b2 = bytes[pos++];
+                    int b3 = bytes[pos++];
+                    if ((b2 & 0xC0) != 0x80 || (b3 & 0xC0) != 0x80) {
+                        throw new UTFDataFormatException();
+                    }
+                    cbuf[off + n++] = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (b3 & 0x3F));
+                } else {
+                    throw new UTFDataFormatException();
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Generate the XML document for a message.
+     * @throws KVException if the message is missing fields required by its type
+     */
+    public static String toXML(KVMessage msg) throws KVException {
+        return appendXML(msg, new StringBuilder(INITIAL_BUFFER)).toString();
+    }
+
+    /**
+     * Write a message as a serialized String holding its XML document.
+     * @throws KVException if the message is missing fields required by its type
+     * @throws IOException if the stream fails
+     */
+    public static void write(KVMessage msg, OutputStream out) throws KVException, IOException {
+        StringBuilder xml = appendXML(msg, new StringBuilder(INITIAL_BUFFER));
+
+        int utfLength = 0;
+        for (int i = 0; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            utfLength += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+
+        boolean longString = utfLength > 0xFFFF;
+        int headerLength = 5 + (longString ? 8 : 2);
+        byte buf[] = new byte[headerLength + utfLength];
+
+        int pos = 0;
+        buf[pos++] = (byte) (STREAM_MAGIC >>> 8);
+        buf[pos++] = (byte) STREAM_MAGIC;
+        buf[pos++] = (byte) (STREAM_VERSION >>> 8);
+        buf[pos++] = (byte) STREAM_VERSION;
+        if (longString) {
+            buf[pos++] = (byte) TC_LONGSTRING;
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buf[pos++] = (byte) ((long) utfLength >>> shift);
+            }
+        } else {
+            buf[pos++] = (byte) TC_STRING;
+            buf[pos++] = (byte) (utfLength >>> 8);
+            buf[pos++] = (byte) utfLength;
+        }
+
+        for (int i = 0; i < xml.length(); i++) {
+            char c = xml.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buf[pos++] = (byte) c;
+            } else if (c <= 0x07FF) {
+                buf[pos++] = (byte) (0xC0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else {
+                buf[pos++] = (byte) (0xE0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        out.write(buf, 0, pos);
+        out.flush();
+    }
+
+    /**
+     * Read a serialized String holding a KVMessage document.
+     * @throws KVException if the document is not a valid message
+     * @throws IOException if the stream fails, ends early or is not a serialized String
+     */
+    public static KVMessage read(InputStream input) throws KVException, IOException {
+        DataInputStream in = new DataInputStream(input);
+        if (in.readUnsignedShort() != STREAM_MAGIC || in.readUnsignedShort() != STREAM_VERSION) {
+            throw new StreamCorruptedException("invalid stream header");
+        }
+
+        long utfLength;
+        switch (in.readUnsignedByte()) {
+            case TC_STRING:
+                utfLength = in.readUnsignedShort();
+                break;
+            case TC_LONGSTRING:
+                utfLength = in.readLong();
+                break;
+            case TC_NULL:
+                throw new KVException(new KVMessage("resp", XML_ERR));
+            default:
+                throw new StreamCorruptedException("unexpected type code");
+        }
+        if (utfLength < 0 || utfLength > KVMessageFrameDecoder.MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("string too large: " + utfLength);
+        }
+
+        byte bytes[] = new byte[(int) utfLength];
+        in.readFully(bytes);
+        return parse(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Decode a complete frame, as found by {@link KVMessageFrameDecoder},
+     * parsing the document in place.
+     * @throws KVException if the document is not a valid message
+     * @throws IOException if the frame is not exactly one serialized String
+     */
+    public static KVMessage decode(byte frame[]) throws KVException, IOException {
+        if (frame.length < 5 || (((frame[0] & 0xFF) << 8) | (frame[1] & 0xFF)) != STREAM_MAGIC
+                || (((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF)) != STREAM_VERSION) {
+            throw new StreamCorruptedException("invalid stream header");
+        }
+
+        int start;
+        switch (frame[4] & 0xFF) {
+            case TC_STRING:
+                start = 7;
+                break;
+            case TC_LONGSTRING:
+                start = 13;
+                break;
+            case TC_NULL:
+                throw new KVException(new KVMessage("resp", XML_ERR));
+            default:
+                throw new StreamCorruptedException("unexpected type code");
+        }
+        if (frame.length < start) {
+            throw new StreamCorruptedException("frame cut short");
+        }
+        long utfLength = 0;
+        for (int i = 5; i < start; i++) {
+            utfLength = (utfLength << 8) | (frame[i] & 0xFF);
+        }
+        if (utfLength != frame.length - start) {
+            throw new StreamCorruptedException("frame does not hold exactly one string");
+        }
+        return parse(frame, start, (int) utfLength);
+    }
+
+    private static KVMessage parse(byte bytes[], int offset, int length) throws KVException {
+        XMLStreamReader xml = null;
+        try {
+            synchronized (INPUT_FACTORY) {
+                xml = INPUT_FACTORY.createXMLStreamReader(new ModifiedUtf8Reader(bytes, offset, length));
+            }
+            xml.nextTag();
+            if (!xml.getLocalName().equals("KVMessage")) {
+                throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+            }
+
+            String type = xml.getAttributeValue(null, "type");
+            if (type == null) {
+                throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+            }
+            KVMessage msg = new KVMessage(type);
+            msg.setId(xml.getAttributeValue(null, "id"));
+
+            String key = null, value = null, message = null, endKey = null, prefix = null, limit = null;
+            int keys = 0, values = 0, messages = 0;
+            List<KVPair> pairs = new ArrayList<>();
+            while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                switch (xml.getLocalName()) {
+                    case "KVPair":
+                        pairs.add(parsePair(xml));
+                        break;
+                    case "Key":
+                        key = xml.getElementText();
+                        keys++;
+                        break;
+                    case "Value":
+                        value = xml.getElementText();
+                        values++;
+                        break;
+                    case "Message":
+                        message = xml.getElementText();
+                        messages++;
+                        break;
+                    case "EndKey":
+                        endKey = xml.getElementText();
+                        break;
+                    case "Prefix":
+                        prefix = xml.getElementText();
+                        break;
+                    case "Limit":
+                        limit = xml.getElementText();
+                        break;
+                    default:
+                        skipElement(xml);
+                }
+            }
+            while (xml.hasNext()) {
+                xml.next();
+            }
+
+            if (msg.isBatch()) {
+                if (keys != 0 || values != 0 || messages != 0) {
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                }
+                msg.setPairs(pairs);
+                try {
+                    msg.checkFields();
+                } catch (KVException e) {
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                }
+            } else if (type.equals("scanreq") || type.equals("scanresp")) {
+                if (keys > 1 || values != 0 || messages != 0) {
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                }
+                msg.setKey(key);
+                if (type.equals("scanresp")) {
+                    msg.setPairs(pairs);
+                } else {
+                    if (!pairs.isEmpty() || limit == null) {
+                        throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                    }
+                    msg.setEndKey(endKey);
+                    msg.setPrefix(prefix);
+                    msg.setLimit(parseLimit(limit));
+                }
+                try {
+                    msg.checkFields();
+                } catch (KVException e) {
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                }
+            } else if (type.equals("putreq") || type.equals("getreq") || type.equals("delreq")) {
+                if (keys != 1 || (type.equals("putreq") && values != 1)) {
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+                }
+                msg.setKey(key);
+                if (type.equals("putreq")) {
+                    msg.setValue(value);
+                }
+            } else if (keys == 1 && values == 1 && messages == 0) {
+                msg.setKey(key);
+                msg.setValue(value);
+            } else if (messages == 1 && keys == 0 && values == 0) {
+                msg.setMessage(message);
+            } else {
+                throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+            }
+            return msg;
+        } catch (XMLStreamException e) {
+            throw new KVException(new KVMessage("resp", XML_ERR));
+        } finally {
+            if (xml != null) {
+                try {
+                    xml.close();
+                } catch (XMLStreamException e) {
+                    // Nothing is held open beyond the in-memory reader
+                }
+            }
+        }
+    }
+
+    private static int parseLimit(String limit) throws KVException {
+        try {
+            return Integer.parseInt(limit.trim());
+        } catch (NumberFormatException e) {
+            throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+        }
+    }
+
+    private static KVPair parsePair(XMLStreamReader xml) throws XMLStreamException, KVException {
+        KVPair pair = new KVPair(null);
+        while (xml.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String text = xml.getElementText();
+            switch (xml.getLocalName()) {
+                case "Key":
+                    pair.setKey(text);
+                    break;
+                case "Value":
+                    pair.setValue(text);
+                    break;
+                case "Message":
+                    pair.setMessage(text);
+                    break;
+                default:
+                    throw new KVException(new KVMessage("resp", KVMessage.MSG_FORMAT_ERR));
+            }
+        }
+        return pair;
+    }
+
+    private static void skipElement(XMLStreamReader xml) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static StringBuilder appendXML(KVMessage msg, StringBuilder xml) throws KVException {
+        msg.checkFields();
+
+        // Attributes in the order a DOM serializer emits them
+        xml.append(XML_DECLARATION).append("<KVMessage");
+        if (msg.getId() != null) {
+            xml.append(" id=\"");
+            escapeAttribute(msg.getId(), xml);
+            xml.append('"');
+        }
+        xml.append(" type=\"");
+        escapeAttribute(msg.getMsgType(), xml);
+        xml.append("\">");
+
+        appendElement("Key", msg.getKey(), xml);
+        appendElement("Value", msg.getValue(), xml);
+        appendElement("Message", msg.getMessage(), xml);
+        if (msg.getMsgType().equals("scanreq")) {
+            appendElement("EndKey", msg.getEndKey(), xml);
+            appendElement("Prefix", msg.getPrefix(), xml);
+            appendElement("Limit", Integer.toString(msg.getLimit()), xml);
+        }
+        if (msg.hasPairs()) {
+            for (KVPair pair : msg.getPairs()) {
+                xml.append("<KVPair>");
+                appendElement("Key", pair.getKey(), xml);
+                appendElement("Value", pair.getValue(), xml);
+                appendElement("Message", pair.getMessage(), xml);
+                xml.append("</KVPair>");
+            }
+        }
+        return xml.append("</KVMessage>");
+    }
+
+    private static void appendElement(String tagName, String text, StringBuilder xml) throws KVException {
+        if (text == null) {
+            return;
+        }
+        if (text.isEmpty()) {
+            xml.append('<').append(tagName).append("/>");
+            return;
+        }
+        xml.append('<').append(tagName).append('>');
+        escapeText(text, xml);
+        xml.append("</").append(tagName).append('>');
+    }
+
+    private static void escapeText(String text, StringBuilder xml) throws KVException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                default:
+                    if (Character.isSurrogate(c)) {
+                        i = appendCodePoint(text, i, xml);
+                    } else if ((c < 0x20 && c != '\t' && c != '\n') || (c >= 0x7F && c <= 0x9F)) {
+                        xml.append("&#").append((int) c).append(';');
+                    } else {
+                        xml.append(c);
+                    }
+            }
+        }
+    }
+
+    private static void escapeAttribute(String text, StringBuilder xml) throws KVException {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    xml.append("&amp;");
+                    break;
+                case '<':
+                    xml.append("&lt;");
+                    break;
+                case '>':
+                    xml.append("&gt;");
+                    break;
+                case '"':
+                    xml.append("&quot;");
+                    break;
+                default:
+                    if (Character.isSurrogate(c)) {
+                        i = appendCodePoint(text, i, xml);
+                    } else if (c < 0x20) {
+                        xml.append("&#").append((int) c).append(';');
+                    } else {
+                        xml.append(c);
+                    }
+            }
+        }
+    }
+
+    /**
+     * Supplementary characters are written as character references.
+     * @return the index of the low surrogate
+     */
+    private static int appendCodePoint(String text, int i, StringBuilder xml) throws KVException {
+        if (!Character.isHighSurrogate(text.charAt(i)) || i + 1 >= text.length()
+                || !Character.isLowSurrogate(text.charAt(i + 1))) {
+            throw new KVException(new KVMessage("resp", "XML Error: Invalid character"));
+        }
+        xml.append("&#").append(text.codePointAt(i)).append(';');
+        return i + 1;
+    }
+}
@@ -0,0 +1,926 @@
+package edu.berkeley.cs162;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Log-structured merge tree storage engine, for write heavy workloads.
+ * Changes go to a WriteAheadLog and a sorted in-memory memtable. A full
+ * memtable is frozen and written by a background thread, in one sequential
+ * pass, to an immutable SSTable in level 0; once the table is on disk the
+ * memtable's log is deleted.
+ *
+ * Level 0 tables may overlap and are searched newest first. Compaction is
+ * leveled: when level 0 holds too many tables they are merged with the
+ * level 1 tables they overlap, and when a deeper level outgrows its budget
+ * (ten times the one above) one of its tables, chosen round robin, is
+ * merged into the next level. Tables in level 1 and below never overlap, so
+ * a lookup checks the memtable, the frozen memtables, level 0 and then at
+ * most one table per level. Deletions are kept as tombstones until they are
+ * merged into the deepest level holding data. A scan merges the memtables
+ * and the tables overlapping its range in key order, the newest entry for
+ * each key winning.
+ *
+ * Which table is in which level is kept in a MANIFEST file, replaced
+ * atomically after every flush and compaction. On startup the tables it
+ * lists are opened, files it does not list are removed, and the logs of
+ * memtables that were never flushed are replayed.
+ */
+public class LsmStore implements KVStorageEngine {
+    /**
+     * Stands for a deletion in memtables and lookups. Compared by identity.
+     */
+    static final String DELETED = new String("<deleted>");
+
+    static final long DEFAULT_MEMTABLE_SIZE = 4 * 1024 * 1024;
+    private static final long TARGET_FILE_SIZE = 2 * 1024 * 1024;
+    private static final int L0_COMPACTION_TRIGGER = 4;
+    private static final long LEVEL1_SIZE = 10 * 1024 * 1024;
+    private static final int LEVEL_MULTIPLIER = 10;
+    private static final int MAX_LEVELS = 7;
+
+    /**
+     * Frozen memtables allowed to wait for a flush before writers are slowed down
+     */
+    private static final int MAX_IMMUTABLE = 2;
+
+    /**
+     * Rough per entry memtable overhead in bytes, on top of the key and value
+     */
+    private static final int ENTRY_OVERHEAD = 64;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".log";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static class Memtable {
+        final NavigableMap<String, String> entries = new ConcurrentSkipListMap<>();
+        final long logNumber;
+        final WriteAheadLog log;
+        long size = 0;
+
+        Memtable(long logNumber, WriteAheadLog log) {
+            this.logNumber = logNumber;
+            this.log = log;
+        }
+    }
+
+    /**
+     * The log and sequence number of a thread's last change, for awaitDurable
+     */
+    private static class LastWrite {
+        WriteAheadLog log = null;
+        long lsn = 0;
+    }
+
+    private final Path directory;
+    private final long memtableSize;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private Memtable memtable = null;
+    /**
+     * Frozen memtables waiting to be flushed, newest first
+     */
+    private final Deque<Memtable> immutables = new ArrayDeque<>();
+    /**
+     * Level 0 newest first; the others in key order
+     */
+    private final List<List<SSTable>> levels = new ArrayList<>();
+    private final String compactPointer[] = new String[MAX_LEVELS];
+    private final AtomicLong nextNumber = new AtomicLong(1);
+    private final ThreadLocal<LastWrite> lastWrite = ThreadLocal.withInitial(LastWrite::new);
+
+    private final Semaphore work = new Semaphore(0);
+    private final Object flushed = new Object();
+    private volatile int waitingFlush = 0;
+    private final Thread compactor;
+    private volatile boolean closed = false;
+
+    public LsmStore(String directory) throws IOException {
+        this(directory, DEFAULT_MEMTABLE_SIZE);
+    }
+
+    /**
+     * Open the store in the given directory, creating it if need be.
+     * @param directory where tables, logs and the manifest are kept
+     * @param memtableSize approximate bytes of memory a memtable fills before it is flushed
+     * @throws IOException if the existing tables or logs cannot be read
+     */
+    public LsmStore(String directory, long memtableSize) throws IOException {
+        this.directory = Paths.get(directory);
+        this.memtableSize = memtableSize;
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            levels.add(new ArrayList<>());
+        }
+        Files.createDirectories(this.directory);
+        recover();
+
+        compactor = new Thread(this::runCompactor, "LsmStore-compactor");
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * One lock for every key: changes are applied one at a time.
+     */
+    public ReentrantReadWriteLock getLock(String key) {
+        return lock;
+    }
+
+    public int getStripe(String key) {
+        return 0;
+    }
+
+    public void put(String key, String value) throws KVException {
+        AutoGrader.agStorePutStarted(key, value);
+
+        try {
+            makeRoom();
+            record(memtable.log.put(key, value));
+            add(key, value);
+        } catch (IOException e) {
+            throw ioError("Could not write value", e);
+        } finally {
+            AutoGrader.agStorePutFinished(key, value);
+        }
+    }
+
+    public String get(String key) throws KVException {
+        AutoGrader.agStoreGetStarted(key);
+
+        try {
+            String value = lookup(key);
+            if (value == null || value == DELETED) {
+                throw new KVException(new KVMessage("resp", KVStore.keyNotFound(key)));
+            }
+            return value;
+        } catch (IOException e) {
+            throw ioError("Could not read value", e);
+        } finally {
+            AutoGrader.agStoreGetFinished(key);
+        }
+    }
+
+    public void del(String key) throws KVException {
+        AutoGrader.agStoreDelStarted(key);
+
+        try {
+            String value = lookup(key);
+            if (value == null || value == DELETED) {
+                throw new KVException(new KVMessage("resp", KVStore.keyNotFound(key)));
+            }
+            makeRoom();
+            record(memtable.log.del(Collections.singletonList(key)));
+            add(key, DELETED);
+        } catch (IOException e) {
+            throw ioError("Could not delete value", e);
+        } finally {
+            AutoGrader.agStoreDelFinished(key);
+        }
+    }
+
+    public Map<String, String> multiGet(Collection<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreGetStarted(key);
+        }
+
+        try {
+            Map<String, String> values = new HashMap<>();
+            for (String key : keys) {
+                String value = lookup(key);
+                if (value != null && value != DELETED) {
+                    values.put(key, value);
+                }
+            }
+            return values;
+        } catch (IOException e) {
+            throw ioError("Could not read value", e);
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreGetFinished(key);
+            }
+        }
+    }
+
+    public void multiPut(List<KVPair> pairs) throws KVException {
+        for (KVPair pair : pairs) {
+            AutoGrader.agStorePutStarted(pair.getKey(), pair.getValue());
+        }
+
+        try {
+            makeRoom();
+            record(memtable.log.put(pairs));
+            for (KVPair pair : pairs) {
+                add(pair.getKey(), pair.getValue());
+            }
+        } catch (IOException e) {
+            throw ioError("Could not write values", e);
+        } finally {
+            for (KVPair pair : pairs) {
+                AutoGrader.agStorePutFinished(pair.getKey(), pair.getValue());
+            }
+        }
+    }
+
+    public boolean[] multiDel(List<String> keys) throws KVException {
+        for (String key : keys) {
+            AutoGrader.agStoreDelStarted(key);
+        }
+
+        try {
+            boolean removed[] = new boolean[keys.size()];
+            Set<String> present = new HashSet<>();
+            for (int i = 0; i < removed.length; i++) {
+                String value = lookup(keys.get(i));
+                removed[i] = value != null && value != DELETED && present.add(keys.get(i));
+            }
+            if (!present.isEmpty()) {
+                makeRoom();
+                record(memtable.log.del(present));
+                for (String key : present) {
+                    add(key, DELETED);
+                }
+            }
+            return removed;
+        } catch (IOException e) {
+            throw ioError("Could not delete values", e);
+        } finally {
+            for (String key : keys) {
+                AutoGrader.agStoreDelFinished(key);
+            }
+        }
+    }
+
+    /**
+     * Merge the memtables with every table that overlaps the range, newest
+     * first, so that each key shows its latest value and deleted keys are
+     * left out. Holds the read lock throughout, as compaction closes the
+     * tables it replaces. Like a lookup it may see changes not yet on disk,
+     * so it waits for the memtables' logs before returning.
+     */
+    @Override
+    public List<KVPair> scan(String from, String to, int limit) throws KVException {
+        List<KVPair> entries = new ArrayList<>(Math.min(limit, 1024));
+        if (from != null && to != null && from.compareTo(to) >= 0) {
+            return entries;
+        }
+        List<WriteAheadLog> logs = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            sources.add(range(memtable.entries, from, to).entrySet().iterator());
+            logs.add(memtable.log);
+            for (Memtable m : immutables) {
+                sources.add(range(m.entries, from, to).entrySet().iterator());
+                logs.add(m.log);
+            }
+            for (SSTable table : levels.get(0)) {
+                if (overlaps(table, from, to)) {
+                    sources.add(table.iterator(from));
+                }
+            }
+            for (int i = 1; i < MAX_LEVELS; i++) {
+                List<SSTable> tables = new ArrayList<>();
+                for (SSTable table : levels.get(i)) {
+                    if (overlaps(table, from, to)) {
+                        tables.add(table);
+                    }
+                }
+                sources.add(concat(tables, from));
+            }
+
+            Iterator<Map.Entry<String, String>> merged = newest(sources);
+            while (entries.size() < limit && merged.hasNext()) {
+                Map.Entry<String, String> entry = merged.next();
+                if (to != null && entry.getKey().compareTo(to) >= 0) {
+                    break;
+                }
+                if (entry.getValue() != null && entry.getValue() != DELETED) {
+                    entries.add(new KVPair(entry.getKey(), entry.getValue()));
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw ioError("Could not scan", e.getCause());
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        try {
+            for (WriteAheadLog log : logs) {
+                log.awaitDurable(log.lastLsn());
+            }
+        } catch (IOException e) {
+            throw ioError("Could not log change", e);
+        }
+        return entries;
+    }
+
+    private static NavigableMap<String, String> range(NavigableMap<String, String> entries, String from, String to) {
+        if (from != null) {
+            entries = entries.tailMap(from, true);
+        }
+        if (to != null) {
+            entries = entries.headMap(to, false);
+        }
+        return entries;
+    }
+
+    /**
+     * @return whether the table could hold a key from from, inclusive, to to, exclusive; null bounds are open
+     */
+    private static boolean overlaps(SSTable table, String from, String to) {
+        return (from == null || table.largest().compareTo(from) >= 0) && (to == null || table.smallest().compareTo(to) < 0);
+    }
+
+    /**
+     * Wait for this thread's changes to reach the log on disk. Also where
+     * writers are held back, without the store lock, while flushing is
+     * behind.
+     */
+    public void awaitDurable() throws KVException {
+        LastWrite last = lastWrite.get();
+        if (last.log != null) {
+            try {
+                last.log.awaitDurable(last.lsn);
+            } catch (IOException e) {
+                throw ioError("Could not log change", e);
+            }
+        }
+
+        synchronized (flushed) {
+            while (waitingFlush > MAX_IMMUTABLE && !closed) {
+                try {
+                    flushed.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop background work and close every file. Memtables that were not
+     * flushed are recovered from their logs when the store is next opened.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        compactor.interrupt();
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (flushed) {
+            flushed.notifyAll();
+        }
+
+        lock.writeLock().lock();
+        try {
+            memtable.log.close();
+            for (Memtable m : immutables) {
+                m.log.close();
+            }
+            for (List<SSTable> level : levels) {
+                for (SSTable table : level) {
+                    table.close();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static KVException ioError(String what, IOException e) throws KVException {
+        return new KVException(new KVMessage("resp", "IO Error: " + what + ": " + e.getMessage()));
+    }
+
+    private void record(long lsn) {
+        LastWrite last = lastWrite.get();
+        last.log = memtable.log;
+        last.lsn = lsn;
+    }
+
+    private void add(String key, String value) {
+        memtable.entries.put(key, value);
+        memtable.size += 2 * (key.length() + (value == DELETED ? 0 : value.length())) + ENTRY_OVERHEAD;
+    }
+
+    /**
+     * Freeze the memtable if it is full, before a change is made to it, and
+     * hand it to the background thread. Must hold the write lock.
+     */
+    private void makeRoom() throws IOException {
+        if (closed) {
+            throw new IOException("LsmStore is closed");
+        }
+        if (memtable.size < memtableSize) {
+            return;
+        }
+        Memtable fresh = newMemtable();
+        immutables.addFirst(memtable);
+        memtable = fresh;
+        waitingFlush = immutables.size();
+        work.release();
+    }
+
+    private Memtable newMemtable() throws IOException {
+        long number = nextNumber.getAndIncrement();
+        WriteAheadLog log = new WriteAheadLog(directory.resolve(fileName(number, LOG_SUFFIX)));
+        log.replay(new WriteAheadLog.Visitor() {
+            public void put(String key, String value) {
+            }
+
+            public void del(String key) {
+            }
+
+            public void clear() {
+            }
+        });
+        return new Memtable(number, log);
+    }
+
+    /**
+     * Find the newest entry for a key. Must hold the read or write lock.
+     * @return the value, DELETED, or null if the store has never held the key
+     */
+    private String lookup(String key) throws IOException {
+        String value = memtable.entries.get(key);
+        if (value != null) {
+            return value;
+        }
+        for (Memtable m : immutables) {
+            value = m.entries.get(key);
+            if (value != null) {
+                return value;
+            }
+        }
+        for (SSTable table : levels.get(0)) {
+            if (table.overlaps(key, key)) {
+                value = table.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        for (int i = 1; i < MAX_LEVELS; i++) {
+            SSTable table = find(levels.get(i), key);
+            if (table != null) {
+                value = table.get(key);
+                if (value != null) {
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the table of a non-overlapping level whose range holds the key, or null
+     */
+    private static SSTable find(List<SSTable> level, String key) {
+        int lo = 0;
+        int hi = level.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (level.get(mid).largest().compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo < level.size() && level.get(lo).smallest().compareTo(key) <= 0) {
+            return level.get(lo);
+        }
+        return null;
+    }
+
+    private static String fileName(long number, String suffix) {
+        return String.format("%06d", number) + suffix;
+    }
+
+    private void runCompactor() {
+        while (!closed) {
+            try {
+                work.tryAcquire(1, TimeUnit.SECONDS);
+                while (!closed && flushOne()) {
+                    // Flush every frozen memtable before compacting
+                }
+                while (!closed && compactOnce()) {
+                    // Until every level is within its budget
+                }
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException | UncheckedIOException e) {
+                KVLog.log(KVLog.Level.ERROR, "LsmStore: background work failed: %s", e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException f) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the oldest frozen memtable to level 0.
+     * @return false if there was nothing to flush
+     */
+    private boolean flushOne() throws IOException {
+        Memtable oldest;
+        lock.readLock().lock();
+        try {
+            oldest = immutables.peekLast();
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (oldest == null) {
+            return false;
+        }
+
+        // Frozen, so read without the lock
+        SSTable table = writeTable(oldest.entries);
+
+        lock.writeLock().lock();
+        try {
+            levels.get(0).add(0, table);
+            immutables.removeLast();
+            writeManifest();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        oldest.log.close();
+        Files.deleteIfExists(oldest.log.getFile());
+        KVLog.log(KVLog.Level.INFO, "LsmStore: flushed %d entries to %s", table.getEntryCount(), table.getFile());
+
+        synchronized (flushed) {
+            waitingFlush = immutables.size();
+            flushed.notifyAll();
+        }
+        return true;
+    }
+
+    private SSTable writeTable(NavigableMap<String, String> entries) throws IOException {
+        long number = nextNumber.getAndIncrement();
+        SSTable.Writer writer = new SSTable.Writer(number, directory.resolve(fileName(number, TABLE_SUFFIX)));
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()) {
+                writer.add(entry.getKey(), entry.getValue() == DELETED ? null : entry.getValue());
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abandon();
+            throw e;
+        }
+    }
+
+    private static long levelBytes(List<SSTable> level) {
+        long bytes = 0;
+        for (SSTable table : level) {
+            bytes += table.size();
+        }
+        return bytes;
+    }
+
+    private static long maxBytes(int level) {
+        long bytes = LEVEL1_SIZE;
+        for (int i = 1; i < level; i++) {
+            bytes *= LEVEL_MULTIPLIER;
+        }
+        return bytes;
+    }
+
+    /**
+     * Run one compaction, if any level needs it. Only the background thread
+     * changes the levels, so they can be read here without the lock.
+     * @return false if every level is within its budget
+     */
+    private boolean compactOnce() throws IOException {
+        int level = -1;
+        List<SSTable> upper = new ArrayList<>();
+        if (levels.get(0).size() >= L0_COMPACTION_TRIGGER) {
+            level = 0;
+            upper.addAll(levels.get(0));
+        } else {
+            for (int i = 1; i < MAX_LEVELS - 1 && level < 0; i++) {
+                List<SSTable> tables = levels.get(i);
+                if (levelBytes(tables) > maxBytes(i)) {
+                    level = i;
+                    SSTable chosen = tables.get(0);
+                    for (SSTable table : tables) {
+                        if (compactPointer[i] == null || table.smallest().compareTo(compactPointer[i]) > 0) {
+                            chosen = table;
+                            break;
+                        }
+                    }
+                    compactPointer[i] = chosen.largest();
+                    upper.add(chosen);
+                }
+            }
+        }
+        if (level < 0) {
+            return false;
+        }
+
+        String smallest = upper.get(0).smallest();
+        String largest = upper.get(0).largest();
+        for (SSTable table : upper) {
+            smallest = table.smallest().compareTo(smallest) < 0 ? table.smallest() : smallest;
+            largest = table.largest().compareTo(largest) > 0 ? table.largest() : largest;
+        }
+        List<SSTable> lower = new ArrayList<>();
+        for (SSTable table : levels.get(level + 1)) {
+            if (table.overlaps(smallest, largest)) {
+                lower.add(table);
+            }
+        }
+        boolean bottom = true;
+        for (int i = level + 2; i < MAX_LEVELS; i++) {
+            bottom &= levels.get(i).isEmpty();
+        }
+
+        // Newer sources first: level 0 tables are each their own source, newest first
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        for (SSTable table : upper) {
+            sources.add(table.iterator());
+        }
+        sources.add(concat(lower, null));
+        List<SSTable> outputs = merge(sources, bottom);
+
+        lock.writeLock().lock();
+        try {
+            levels.get(level).removeAll(upper);
+            List<SSTable> target = levels.get(level + 1);
+            target.removeAll(lower);
+            target.addAll(outputs);
+            target.sort(Comparator.comparing(SSTable::smallest));
+            writeManifest();
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<SSTable> inputs = new ArrayList<>(upper);
+        inputs.addAll(lower);
+        long before = 0;
+        for (SSTable table : inputs) {
+            before += table.size();
+            table.close();
+            Files.deleteIfExists(table.getFile());
+        }
+        KVLog.log(KVLog.Level.INFO, "LsmStore: compacted %d tables (%d bytes) from level %d into %d tables (%d bytes)",
+                upper.size() + lower.size(), before, level, outputs.size(), levelBytes(outputs));
+        return true;
+    }
+
+    /**
+     * @param from the least key to return, or null to start at the first key
+     */
+    private static Iterator<Map.Entry<String, String>> concat(List<SSTable> tables, String from) {
+        Iterator<SSTable> it = tables.iterator();
+        return new Iterator<Map.Entry<String, String>>() {
+            private Iterator<Map.Entry<String, String>> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && it.hasNext()) {
+                    current = it.next().iterator(from);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                hasNext();
+                return current.next();
+            }
+        };
+    }
+
+    /**
+     * Merge sorted sources into new tables of about TARGET_FILE_SIZE. Where
+     * sources share a key, the earliest source wins.
+     * @param dropDeletions whether tombstones can be left out, as nothing older lies beneath
+     */
+    private List<SSTable> merge(List<Iterator<Map.Entry<String, String>>> sources, boolean dropDeletions) throws IOException {
+        Iterator<Map.Entry<String, String>> merged = newest(sources);
+        List<SSTable> outputs = new ArrayList<>();
+        SSTable.Writer writer = null;
+        try {
+            while (merged.hasNext()) {
+                Map.Entry<String, String> entry = merged.next();
+                if (entry.getValue() == null && dropDeletions) {
+                    continue;
+                }
+
+                if (writer == null) {
+                    long number = nextNumber.getAndIncrement();
+                    writer = new SSTable.Writer(number, directory.resolve(fileName(number, TABLE_SUFFIX)));
+                }
+                writer.add(entry.getKey(), entry.getValue());
+                if (writer.size() >= TARGET_FILE_SIZE) {
+                    outputs.add(writer.finish());
+                    writer = null;
+                }
+            }
+            if (writer != null) {
+                outputs.add(writer.finish());
+                writer = null;
+            }
+            return outputs;
+        } catch (IOException | RuntimeException e) {
+            if (writer != null) {
+                writer.abandon();
+            }
+            for (SSTable table : outputs) {
+                table.close();
+                Files.deleteIfExists(table.getFile());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Merge sorted sources into one sorted run. Where sources share a key,
+     * only the entry from the earliest source is returned.
+     */
+    private static Iterator<Map.Entry<String, String>> newest(List<Iterator<Map.Entry<String, String>>> sources) {
+        // Each element is { entry, source index }
+        PriorityQueue<Object[]> heads = new PriorityQueue<>((a, b) -> {
+            @SuppressWarnings("unchecked")
+            int c = ((Map.Entry<String, String>) a[0]).getKey().compareTo(((Map.Entry<String, String>) b[0]).getKey());
+            return c != 0 ? c : Integer.compare((Integer) a[1], (Integer) b[1]);
+        });
+        for (int i = 0; i < sources.size(); i++) {
+            advance(heads, sources, i);
+        }
+
+        return new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+                return !heads.isEmpty();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (heads.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Object head[] = heads.poll();
+                @SuppressWarnings("unchecked")
+                Map.Entry<String, String> entry = (Map.Entry<String, String>) head[0];
+                advance(heads, sources, (Integer) head[1]);
+                // Older entries for the same key are shadowed
+                while (!heads.isEmpty() && ((Map.Entry<?, ?>) heads.peek()[0]).getKey().equals(entry.getKey())) {
+                    advance(heads, sources, (Integer) heads.poll()[1]);
+                }
+                return entry;
+            }
+        };
+    }
+
+    private static void advance(PriorityQueue<Object[]> heads, List<Iterator<Map.Entry<String, String>>> sources, int i) {
+        if (sources.get(i).hasNext()) {
+            heads.add(new Object[] { sources.get(i).next(), i });
+        }
+    }
+
+    /**
+     * Record the current tables and the oldest log still needed. Must hold the write lock.
+     */
+    private void writeManifest() throws IOException {
+        long logNumber = immutables.isEmpty() ? memtable.logNumber : immutables.peekLast().logNumber;
+        StringBuilder sb = new StringBuilder();
+        sb.append("next ").append(nextNumber.get()).append(" log ").append(logNumber).append('\n');
+        for (int i = 0; i < MAX_LEVELS; i++) {
+            for (SSTable table : levels.get(i)) {
+                sb.append(i).append(' ').append(table.getNumber()).append('\n');
+            }
+        }
+
+        Path temp = directory.resolve(MANIFEST + TEMP_SUFFIX);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void recover() throws IOException {
+        long logNumber = 0;
+        Set<Long> live = new HashSet<>();
+        Path manifest = directory.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            List<String> lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+            String header[] = lines.get(0).split(" ");
+            nextNumber.set(Long.parseLong(header[1]));
+            logNumber = Long.parseLong(header[3]);
+            for (String line : lines.subList(1, lines.size())) {
+                String fields[] = line.split(" ");
+                int level = Integer.parseInt(fields[0]);
+                long number = Long.parseLong(fields[1]);
+                levels.get(level).add(new SSTable(number, directory.resolve(fileName(number, TABLE_SUFFIX))));
+                live.add(number);
+            }
+        }
+        levels.get(0).sort(Comparator.comparing(SSTable::getNumber).reversed());
+        for (int i = 1; i < MAX_LEVELS; i++) {
+            levels.get(i).sort(Comparator.comparing(SSTable::smallest));
+        }
+
+        // Remove what a crash left behind, and find the logs still to replay
+        TreeMap<Long, Path> logs = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    Files.delete(file);
+                } else if (name.endsWith(TABLE_SUFFIX) || name.endsWith(LOG_SUFFIX)) {
+                    long number;
+                    try {
+                        number = Long.parseLong(name.substring(0, name.length() - 4));
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    nextNumber.set(Math.max(nextNumber.get(), number + 1));
+                    if (name.endsWith(TABLE_SUFFIX) && !live.contains(number)) {
+                        Files.delete(file);
+                    } else if (name.endsWith(LOG_SUFFIX)) {
+                        if (number < logNumber) {
+                            Files.delete(file);
+                        } else {
+                            logs.put(number, file);
+                        }
+                    }
+                }
+            }
+        }
+
+        NavigableMap<String, String> replayed = new ConcurrentSkipListMap<>();
+        for (Path file : logs.values()) {
+            try (WriteAheadLog log = new WriteAheadLog(file)) {
+                log.replay(new WriteAheadLog.Visitor() {
+                    public void put(String key, String value) {
+                        replayed.put(key, value);
+                    }
+
+                    public void del(String key) {
+                        replayed.put(key, DELETED);
+                    }
+
+                    public void clear() {
+                        // Never written by LsmStore
+                    }
+                });
+            }
+        }
+        if (!replayed.isEmpty()) {
+            levels.get(0).add(0, writeTable(replayed));
+        }
+
+        memtable = newMemtable();
+        writeManifest();
+        for (Path file : logs.values()) {
+            Files.delete(file);
+        }
+
+        int tables = 0;
+        for (List<SSTable> level : levels) {
+            tables += level.size();
+        }
+        KVLog.log(KVLog.Level.INFO, "LsmStore: opened %d tables in %s, %d entries recovered from logs", tables, directory, replayed.size());
+    }
+}
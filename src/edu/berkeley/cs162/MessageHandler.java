@@ -0,0 +1,18 @@
+package edu.berkeley.cs162;
+
+import java.util.function.Consumer;
+
+/**
+ * Services requests that have already been read off the network. Used by
+ * front ends such as {@link NioSocketServer} that own the socket I/O and only
+ * hand the cache/store work to the handler.
+ */
+public interface MessageHandler {
+    /**
+     * Service a request asynchronously. Called from an event loop thread, so
+     * it must not block waiting for room to run the request.
+     * @param request the decoded request
+     * @param responder receives the response once the request has been serviced; called exactly once
+     */
+    public void handle(KVMessage request, Consumer<KVMessage> responder);
+}
@@ -0,0 +1,423 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector based alternative to {@link SocketServer}. Connections are
+ * multiplexed over a small number of event loop threads which do all of the
+ * socket I/O and message framing; only decoded requests are passed on to the
+ * {@link MessageHandler}, so an idle or slow client never ties up a worker.
+ *
+ * Connections are kept open for any number of requests. Untagged requests on
+ * a connection are serviced one at a time, in the order they arrive. Requests
+ * that carry an id may be pipelined: they are serviced concurrently and their
+ * responses are sent as they complete, possibly out of order. Connections that
+ * stay idle for longer than the idle timeout are closed.
+ */
+public class NioSocketServer {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    /**
+     * Most pipelined requests a single connection may have in progress at once
+     */
+    private static final int MAX_IN_FLIGHT = 32;
+    /**
+     * Stop reading from a connection once this many requests are waiting on it
+     */
+    private static final int MAX_PENDING = 256;
+    /**
+     * Stop reading from and dispatching for a connection once this many
+     * response bytes are waiting to be written to it
+     */
+    private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    /**
+     * Most queued buffers handed to a single gathering write
+     */
+    private static final int MAX_GATHER = 16;
+
+    String hostname;
+    int port;
+    MessageHandler handler;
+    ServerSocketChannel server;
+    EventLoop loops[];
+    volatile boolean open;
+    volatile int idleTimeout = 0;
+
+    private int nextLoop = 0;
+
+    public NioSocketServer(String hostname, int port) {
+        this(hostname, port, Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    }
+
+    /**
+     * @param hostname address to bind to
+     * @param port port to listen on
+     * @param eventLoops number of threads servicing connection I/O
+     */
+    public NioSocketServer(String hostname, int port, int eventLoops) {
+        this.hostname = hostname;
+        this.port = port;
+        this.loops = new EventLoop[eventLoops];
+        open = false;
+    }
+
+    public void connect() throws IOException {
+        if (open) return;
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(this.hostname, this.port));
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new EventLoop(i);
+        }
+        open = true;
+        for (EventLoop loop : loops) {
+            loop.thread.start();
+        }
+    }
+
+    /**
+     * Accept connections and hand them to the event loops in round robin order.
+     * @throws IOException if there is a network error (for instance if the socket is inadvertently closed)
+     */
+    public void run() throws IOException {
+        if (!open) {
+            throw new IOException();
+        }
+        while (open) {
+            SocketChannel channel = server.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            loops[nextLoop].register(channel);
+            nextLoop = (nextLoop + 1) % loops.length;
+        }
+    }
+
+    /**
+     * Add the message handler for the current socket server
+     * @param handler is logic for servicing a request
+     */
+    public void addHandler(MessageHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Close connections that have no request in progress and have not sent
+     * anything for the given time.
+     * @param idleTimeout timeout in milliseconds, or 0 to keep idle connections open indefinitely
+     */
+    public void setIdleTimeout(int idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Stop accepting connections and shut down the event loops
+     */
+    public void stop() {
+        open = false;
+        try {
+            server.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.selector.wakeup();
+            }
+        }
+    }
+
+    /**
+     * A single selector thread. All connection state is only touched from this
+     * thread; other threads hand it work through {@link #execute(Runnable)}.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private long lastSweep = System.currentTimeMillis();
+
+        EventLoop(int id) throws IOException {
+            selector = Selector.open();
+            thread = new Thread(this, "NioSocketServer-loop-" + id);
+            thread.setDaemon(true);
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (ClosedChannelException e) {
+                    // The client has already gone away
+                }
+            });
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        private void closeIdle(int timeout) {
+            long now = System.currentTimeMillis();
+            if (now - lastSweep < Math.min(timeout, 1000)) {
+                return;
+            }
+            lastSweep = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection conn = (Connection) key.attachment();
+                if (conn.isIdle() && now - conn.lastActive > timeout) {
+                    conn.close();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while (open) {
+                int timeout = idleTimeout;
+                try {
+                    selector.select(timeout > 0 ? Math.min(timeout, 1000) : 0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    Connection conn = (Connection) key.attachment();
+                    if (!key.isValid()) {
+                        conn.close();
+                        continue;
+                    }
+                    if (key.isReadable()) {
+                        conn.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        conn.writable();
+                    }
+                }
+
+                if (timeout > 0) {
+                    closeIdle(timeout);
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A request waiting for its turn on a connection. Messages that could not be
+     * parsed already carry the error response to send back.
+     */
+    private static class Pending {
+        final KVMessage request;
+        final KVMessage failure;
+
+        Pending(KVMessage request, KVMessage failure) {
+            this.request = request;
+            this.failure = failure;
+        }
+    }
+
+    private class Connection {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        private long queuedBytes = 0;
+        private final Queue<Pending> pending = new ArrayDeque<>();
+        private boolean busy = false;
+        private int inFlight = 0;
+        private boolean closed = false;
+        private long lastActive = System.currentTimeMillis();
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            this.loop = loop;
+            this.channel = channel;
+            this.key = key;
+        }
+
+        void read() {
+            try {
+                int n = channel.read(readBuffer);
+                if (n < 0) {
+                    close();
+                    return;
+                }
+                lastActive = System.currentTimeMillis();
+
+                readBuffer.flip();
+                int length;
+                while ((length = KVMessageFrameDecoder.frameLength(readBuffer)) >= 0) {
+                    byte frame[] = new byte[length];
+                    readBuffer.get(frame);
+                    try {
+                        pending.add(new Pending(new KVMessage(frame), null));
+                    } catch (KVException e) {
+                        pending.add(new Pending(null, e.getMsg()));
+                    }
+                }
+                readBuffer.compact();
+
+                if (!readBuffer.hasRemaining()) {
+                    growReadBuffer();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        private void growReadBuffer() {
+            int capacity = Math.min(readBuffer.capacity() * 2, KVMessageFrameDecoder.MAX_FRAME_SIZE);
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            readBuffer.flip();
+            bigger.put(readBuffer);
+            readBuffer = bigger;
+        }
+
+        private void dispatch() {
+            while (!busy && !closed && !pending.isEmpty() && queuedBytes <= MAX_QUEUED_BYTES) {
+                Pending next = pending.peek();
+                boolean tagged = next.request != null && next.request.getId() != null;
+                if (tagged ? inFlight >= MAX_IN_FLIGHT : inFlight > 0) {
+                    break;
+                }
+                pending.poll();
+
+                if (next.failure != null) {
+                    respond(next.failure);
+                    continue;
+                }
+                if (tagged) {
+                    inFlight++;
+                } else {
+                    busy = true;
+                }
+                handler.handle(next.request, response -> loop.execute(() -> {
+                    if (tagged) {
+                        inFlight--;
+                    } else {
+                        busy = false;
+                    }
+                    respond(response);
+                    dispatch();
+                }));
+            }
+
+            if (!closed) {
+                int ops = key.interestOps();
+                boolean room = pending.size() < MAX_PENDING && queuedBytes <= MAX_QUEUED_BYTES;
+                key.interestOps(room ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+            }
+        }
+
+        private void respond(KVMessage response) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (response.getFormat() == KVMessage.Format.BINARY) {
+                    // Large values stay in their cached buffer and go out with a gathering write
+                    for (ByteBuffer buf : KVBinaryCodec.encodeBuffers(response)) {
+                        queue(buf);
+                    }
+                } else {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    response.sendMessage(out);
+                    queue(ByteBuffer.wrap(out.toByteArray()));
+                }
+            } catch (KVException e) {
+                e.printStackTrace();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            write();
+        }
+
+        private void queue(ByteBuffer buf) {
+            writeQueue.add(buf);
+            queuedBytes += buf.remaining();
+        }
+
+        /**
+         * Write out what the socket will now take, and pick the connection
+         * back up if that brought its queued responses under the limit.
+         */
+        void writable() {
+            boolean throttled = queuedBytes > MAX_QUEUED_BYTES;
+            write();
+            if (throttled && !closed && queuedBytes <= MAX_QUEUED_BYTES) {
+                dispatch();
+            }
+        }
+
+        void write() {
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer bufs[] = new ByteBuffer[Math.min(writeQueue.size(), MAX_GATHER)];
+                    Iterator<ByteBuffer> it = writeQueue.iterator();
+                    for (int i = 0; i < bufs.length; i++) {
+                        bufs[i] = it.next();
+                    }
+                    queuedBytes -= channel.write(bufs);
+                    while (!writeQueue.isEmpty() && !writeQueue.peek().hasRemaining()) {
+                        writeQueue.poll();
+                    }
+                    if (!writeQueue.isEmpty() && bufs[bufs.length - 1].hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        boolean isIdle() {
+            return !busy && inFlight == 0 && pending.isEmpty() && writeQueue.isEmpty();
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
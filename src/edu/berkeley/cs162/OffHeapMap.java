@@ -0,0 +1,241 @@
+package edu.berkeley.cs162;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+
+/**
+ * A concurrent map from keys to string values whose values are kept off the
+ * Java heap, UTF-8 encoded, in blocks from a SlabAllocator. On the heap there
+ * is only a ConcurrentHashMap from each key to its block's handle.
+ *
+ * The map owns one reference to each block it holds. A lookup takes a
+ * reference of its own while it decodes the value, so a value replaced or
+ * removed meanwhile is freed only once the lookup is done; a lookup that
+ * finds its block already freed simply reads the key again. Values are
+ * decoded into a new String on every lookup.
+ *
+ * Iteration is weakly consistent, as for ConcurrentHashMap: an entry
+ * changed during iteration is returned with its current value, or left out
+ * if it was removed.
+ */
+public class OffHeapMap extends AbstractMap<String, String> implements ConcurrentMap<String, String> {
+    private final SlabAllocator slabs;
+    private final ConcurrentHashMap<String, Long> handles;
+
+    public OffHeapMap(SlabAllocator slabs) {
+        this(slabs, 16);
+    }
+
+    public OffHeapMap(SlabAllocator slabs, int initialCapacity) {
+        this.slabs = slabs;
+        this.handles = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public int size() {
+        return handles.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return handles.containsKey(key);
+    }
+
+    @Override
+    public String get(Object key) {
+        while (true) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                return null;
+            }
+            if (slabs.retain(handle)) {
+                try {
+                    return decode(handle);
+                } finally {
+                    slabs.release(handle);
+                }
+            }
+            // Replaced or removed since it was looked up
+        }
+    }
+
+    @Override
+    public String put(String key, String value) {
+        Long old = handles.put(key, encode(value));
+        return old == null ? null : free(old);
+    }
+
+    @Override
+    public String remove(Object key) {
+        Long old = handles.remove(key);
+        return old == null ? null : free(old);
+    }
+
+    /**
+     * Store the value like put, without decoding the value it replaces.
+     */
+    public void set(String key, String value) {
+        Long old = handles.put(key, encode(value));
+        if (old != null) {
+            slabs.release(old);
+        }
+    }
+
+    /**
+     * Remove the key like remove, without decoding its value.
+     * @return whether the key was present
+     */
+    public boolean delete(Object key) {
+        Long old = handles.remove(key);
+        if (old == null) {
+            return false;
+        }
+        slabs.release(old);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        for (String key : handles.keySet()) {
+            delete(key);
+        }
+    }
+
+    /**
+     * Atomic with respect to every other change to the key, as for ConcurrentHashMap.
+     */
+    @Override
+    public String compute(String key, BiFunction<? super String, ? super String, ? extends String> remapping) {
+        String result[] = new String[1];
+        Long freed[] = new Long[1];
+        handles.compute(key, (k, handle) -> {
+            // No other change to the key can run, so the map's reference keeps the block alive
+            String current = handle == null ? null : decode(handle);
+            String value = remapping.apply(k, current);
+            result[0] = value;
+            if (value == current) {
+                return handle;
+            }
+            freed[0] = handle;
+            return value == null ? null : encode(value);
+        });
+        if (freed[0] != null) {
+            slabs.release(freed[0]);
+        }
+        return result[0];
+    }
+
+    @Override
+    public String putIfAbsent(String key, String value) {
+        String previous[] = new String[1];
+        compute(key, (k, current) -> {
+            previous[0] = current;
+            return current == null ? value : current;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (!(key instanceof String)) {
+            return false;
+        }
+        boolean removed[] = new boolean[1];
+        compute((String) key, (k, current) -> {
+            removed[0] = current != null && current.equals(value);
+            return removed[0] ? null : current;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public boolean replace(String key, String oldValue, String newValue) {
+        Objects.requireNonNull(newValue);
+        boolean replaced[] = new boolean[1];
+        compute(key, (k, current) -> {
+            replaced[0] = current != null && current.equals(oldValue);
+            return replaced[0] ? newValue : current;
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public String replace(String key, String value) {
+        Objects.requireNonNull(value);
+        String previous[] = new String[1];
+        compute(key, (k, current) -> {
+            previous[0] = current;
+            return current == null ? null : value;
+        });
+        return previous[0];
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public int size() {
+                return handles.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                Iterator<String> keys = handles.keySet().iterator();
+                return new Iterator<Map.Entry<String, String>>() {
+                    private Map.Entry<String, String> next = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while (next == null && keys.hasNext()) {
+                            String key = keys.next();
+                            String value = get(key);
+                            if (value != null) {
+                                next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                            }
+                        }
+                        return next != null;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = next;
+                        next = null;
+                        return entry;
+                    }
+                };
+            }
+        };
+    }
+
+    private long encode(String value) {
+        return slabs.allocate(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String decode(long handle) {
+        return new String(slabs.read(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Drop the map's reference to a block it no longer holds.
+     * @return the block's value
+     */
+    private String free(long handle) {
+        try {
+            return decode(handle);
+        } finally {
+            slabs.release(handle);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package edu.berkeley.cs162;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32C;
+
+/**
+ * An immutable, sorted table of entries on disk, as written by LsmStore. A
+ * deletion is kept as an entry with no value so that it hides older entries
+ * for its key in other tables.
+ *
+ * The file is a run of data blocks, an index and a fixed size footer. A
+ * block holds entries in key order, each a u32 key length, the UTF-8 key,
+ * an i32 value length (-1 for a deletion) and the UTF-8 value. The index
+ * holds the table's smallest key and, for every block, its last key, offset,
+ * length and CRC32C. The footer gives the index's offset, length and CRC32C,
+ * the number of entries and a magic number. Only the index is kept in
+ * memory; a lookup reads the single block that may hold the key.
+ */
+public class SSTable implements Closeable {
+    static final int BLOCK_SIZE = 4 * 1024;
+
+    private static final int FOOTER_SIZE = 24;
+    private static final int MAGIC = 0x4B565353;
+    private static final int DELETED = -1;
+
+    private final long number;
+    private final Path file;
+    private final FileChannel channel;
+    private final long size;
+    private final int entryCount;
+    private final String smallest;
+    private final String lastKeys[];
+    private final long offsets[];
+    private final int lengths[];
+    private final int checksums[];
+
+    /**
+     * Open a table that has been completely written.
+     * @param number the table's file number, which LsmStore uses to name and order it
+     * @throws IOException if the file cannot be read or is not a complete table
+     */
+    public SSTable(long number, Path file) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Not a table: " + file);
+            }
+            ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+            long indexOffset = footer.getLong();
+            int indexLength = footer.getInt();
+            int indexChecksum = footer.getInt();
+            entryCount = footer.getInt();
+            if (footer.getInt() != MAGIC || indexOffset < 0 || indexOffset + indexLength > size - FOOTER_SIZE) {
+                throw new IOException("Not a table: " + file);
+            }
+
+            ByteBuffer index = read(indexOffset, indexLength);
+            checkCrc(index, indexChecksum);
+            int blocks = index.getInt();
+            smallest = readString(index);
+            lastKeys = new String[blocks];
+            offsets = new long[blocks];
+            lengths = new int[blocks];
+            checksums = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                lastKeys[i] = readString(index);
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                checksums[i] = index.getInt();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getNumber() {
+        return number;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    public String smallest() {
+        return smallest;
+    }
+
+    public String largest() {
+        return lastKeys[lastKeys.length - 1];
+    }
+
+    /**
+     * @return whether any key from smallest to largest, inclusive, could be in this table
+     */
+    public boolean overlaps(String smallest, String largest) {
+        return this.smallest.compareTo(largest) <= 0 && largest().compareTo(smallest) >= 0;
+    }
+
+    /**
+     * @return the value, {@link LsmStore#DELETED} if the table records the key as
+     * deleted, or null if the table knows nothing of the key
+     */
+    public String get(String key) throws IOException {
+        int lo = blockFor(key);
+        if (lo == lastKeys.length || key.compareTo(smallest) < 0) {
+            return null;
+        }
+
+        ByteBuffer block = readBlock(lo);
+        while (block.hasRemaining()) {
+            String k = readString(block);
+            int valueLength = block.getInt();
+            int c = k.compareTo(key);
+            if (c == 0) {
+                if (valueLength == DELETED) {
+                    return LsmStore.DELETED;
+                }
+                return new String(block.array(), block.position(), valueLength, StandardCharsets.UTF_8);
+            } else if (c > 0) {
+                return null;
+            }
+            block.position(block.position() + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * @return every entry in key order; a deletion has a null value. I/O
+     * errors are thrown as UncheckedIOException.
+     */
+    public Iterator<Map.Entry<String, String>> iterator() {
+        return iterator(null);
+    }
+
+    /**
+     * Like {@link #iterator()}, but starting at the given key. Only the
+     * blocks from the one that could hold the key onwards are read.
+     * @param from the least key to return, or null to start at the first key
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String from) {
+        return new Iterator<Map.Entry<String, String>>() {
+            private int nextBlock = from == null ? 0 : blockFor(from);
+            private ByteBuffer block = null;
+            private Map.Entry<String, String> next = null;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null) {
+                    while (block == null || !block.hasRemaining()) {
+                        if (nextBlock == lastKeys.length) {
+                            return false;
+                        }
+                        try {
+                            block = readBlock(nextBlock++);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    String key = readString(block);
+                    int valueLength = block.getInt();
+                    String value = null;
+                    if (valueLength != DELETED) {
+                        value = new String(block.array(), block.position(), valueLength, StandardCharsets.UTF_8);
+                        block.position(block.position() + valueLength);
+                    }
+                    // Only the first block read can hold smaller keys
+                    if (from == null || key.compareTo(from) >= 0) {
+                        next = new AbstractMap.SimpleImmutableEntry<>(key, value);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = next;
+                next = null;
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * @return the first block whose last key is not less than the key, or the number of blocks if there is none
+     */
+    private int blockFor(String key) {
+        int lo = 0;
+        int hi = lastKeys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (lastKeys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer readBlock(int i) throws IOException {
+        ByteBuffer block = read(offsets[i], lengths[i]);
+        checkCrc(block, checksums[i]);
+        return block;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Table cut short: " + file);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void checkCrc(ByteBuffer buf, int expected) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.array(), 0, buf.limit());
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Checksum mismatch in " + file);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        String s = new String(buf.array(), buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * Writes a new table. Entries must be added in strictly increasing key order.
+     */
+    public static class Writer {
+        private final long number;
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE * 2);
+        private final DataOutputStream blockOut = new DataOutputStream(block);
+        private final List<String> lastKeys = new ArrayList<>();
+        private final List<long[]> blocks = new ArrayList<>();
+        private String smallest = null;
+        private String last = null;
+        private long offset = 0;
+        private int entryCount = 0;
+
+        public Writer(long number, Path file) throws IOException {
+            this.number = number;
+            this.file = file;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * @param value the value, or null to record that the key is deleted
+         */
+        public void add(String key, String value) throws IOException {
+            if (smallest == null) {
+                smallest = key;
+            }
+            byte keyBytes[] = key.getBytes(StandardCharsets.UTF_8);
+            blockOut.writeInt(keyBytes.length);
+            blockOut.write(keyBytes);
+            if (value == null) {
+                blockOut.writeInt(DELETED);
+            } else {
+                byte valueBytes[] = value.getBytes(StandardCharsets.UTF_8);
+                blockOut.writeInt(valueBytes.length);
+                blockOut.write(valueBytes);
+            }
+            last = key;
+            entryCount++;
+            if (block.size() >= BLOCK_SIZE) {
+                finishBlock();
+            }
+        }
+
+        /**
+         * @return bytes written so far, counting the block being filled
+         */
+        public long size() {
+            return offset + block.size();
+        }
+
+        public boolean isEmpty() {
+            return entryCount == 0;
+        }
+
+        private void finishBlock() throws IOException {
+            if (block.size() == 0) {
+                return;
+            }
+            byte data[] = block.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(data);
+            writeFully(ByteBuffer.wrap(data));
+            lastKeys.add(last);
+            blocks.add(new long[] { offset, data.length, (int) crc.getValue() });
+            offset += data.length;
+            block.reset();
+        }
+
+        /**
+         * Write out the index and footer, force the file to disk and open it for reading.
+         */
+        public SSTable finish() throws IOException {
+            if (isEmpty()) {
+                throw new IllegalStateException("A table needs at least one entry");
+            }
+            finishBlock();
+
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            DataOutputStream indexOut = new DataOutputStream(index);
+            indexOut.writeInt(blocks.size());
+            writeString(indexOut, smallest);
+            for (int i = 0; i < blocks.size(); i++) {
+                writeString(indexOut, lastKeys.get(i));
+                indexOut.writeLong(blocks.get(i)[0]);
+                indexOut.writeInt((int) blocks.get(i)[1]);
+                indexOut.writeInt((int) blocks.get(i)[2]);
+            }
+            byte indexData[] = index.toByteArray();
+            CRC32C crc = new CRC32C();
+            crc.update(indexData);
+
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            footer.putLong(offset).putInt(indexData.length).putInt((int) crc.getValue()).putInt(entryCount).putInt(MAGIC);
+            footer.flip();
+            writeFully(ByteBuffer.wrap(indexData));
+            writeFully(footer);
+            channel.force(true);
+            channel.close();
+            return new SSTable(number, file);
+        }
+
+        /**
+         * Give up on the table and remove what was written of it.
+         */
+        public void abandon() {
+            try {
+                channel.close();
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                // Removed as an orphan on the next startup instead
+            }
+        }
+
+        private void writeFully(ByteBuffer buf) throws IOException {
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String s) throws IOException {
+            byte bytes[] = s.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
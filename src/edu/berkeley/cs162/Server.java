@@ -31,29 +31,126 @@
 package edu.berkeley.cs162;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
 
+import edu.berkeley.cs162.BitcaskStore;
 import edu.berkeley.cs162.KVClientHandler;
 import edu.berkeley.cs162.KVServer;
-import edu.berkeley.cs162.NetworkHandler;
+import edu.berkeley.cs162.KVStore;
+import edu.berkeley.cs162.LsmStore;
+import edu.berkeley.cs162.NioSocketServer;
+import edu.berkeley.cs162.SlabAllocator;
 import edu.berkeley.cs162.SocketServer;
+import edu.berkeley.cs162.ThreadPool;
+import edu.berkeley.cs162.VirtualThreadClientHandler;
+import edu.berkeley.cs162.WriteAheadLog;
 
 public class Server {
 	static KVServer key_server = null;
 	static SocketServer server = null;
+	static NioSocketServer nio_server = null;
 
 	/**
-	 * @param args
+	 * Milliseconds an idle connection is kept open when keep-alive is enabled
+	 */
+	static final int KEEP_ALIVE_TIMEOUT = 30000;
+
+	/**
+	 * Most requests waiting for a worker thread when the queue is bounded
+	 */
+	static final int QUEUE_CAPACITY = 64;
+
+	/**
+	 * Cache sets, one per KVStore lock stripe. A change holds its key's set
+	 * until the store call and the wait for the log are done, so with fewer
+	 * sets than stripes writers to different stripes would still queue up.
+	 */
+	static final int CACHE_SETS = KVStore.STRIPES;
+
+	/**
+	 * Entries kept in each cache set
+	 */
+	static final int CACHE_SET_SIZE = 1;
+
+	/**
+	 * Write-ahead log of a durable store
+	 */
+	static final String LOG_FILE = "kvstore.wal";
+
+	/**
+	 * Directory of segment files for the bitcask engine
+	 */
+	static final String BITCASK_DIR = "kvstore.bitcask";
+
+	/**
+	 * Directory of tables and logs for the LSM-tree engine
+	 */
+	static final String LSM_DIR = "kvstore.lsm";
+
+	/**
+	 * @param args "nio" to service connections with the selector based front end;
+	 * "keepalive" to let each connection carry more than one request;
+	 * "virtual" to service requests on virtual threads rather than the thread pool, which has no queue to bound
+	 * (on runtimes without virtual threads, a fixed platform pool that answers overflow with "Server Busy");
+	 * "reject" to bound the thread pool's queue and answer overflow with "Server Busy";
+	 * "backpressure" to bound the queue and stop accepting until there is room;
+	 * "durable" to log every change to disk and recover the store from the log on startup;
+	 * "bitcask" to keep values on disk in a log-structured BitcaskStore instead of in memory;
+	 * "lsm" to keep data in a log-structured merge tree, an LsmStore, for write heavy loads;
+	 * "offheap" to keep KVStore's values outside the Java heap, durable or not
 	 * @throws IOException
+	 * @throws IllegalArgumentException if "virtual" is combined with "reject" or "backpressure", or "nio" with "backpressure"
 	 */
 	public static void main(String[] args) throws IOException {
+		List<String> options = Arrays.asList(args);
+		if (options.contains("virtual") && (options.contains("reject") || options.contains("backpressure"))) {
+			throw new IllegalArgumentException("\"virtual\" cannot be combined with \"reject\" or \"backpressure\": virtual threads are not queued");
+		}
+		if (options.contains("nio") && options.contains("backpressure")) {
+			throw new IllegalArgumentException("\"nio\" cannot be combined with \"backpressure\": waiting for room would stall the event loop for every connection");
+		}
+		int keepAliveTimeout = options.contains("keepalive") ? KEEP_ALIVE_TIMEOUT : 0;
+		int queueCapacity = Integer.MAX_VALUE;
+		ThreadPool.RejectionPolicy policy = ThreadPool.RejectionPolicy.BLOCK;
+		if (options.contains("reject")) {
+			queueCapacity = QUEUE_CAPACITY;
+			policy = ThreadPool.RejectionPolicy.REJECT;
+		} else if (options.contains("backpressure")) {
+			queueCapacity = QUEUE_CAPACITY;
+		}
+
 		System.out.println("Binding Server:");
-		key_server = new KVServer(2, 1);
-		server = new SocketServer("localhost", 8080);
-		NetworkHandler handler = new KVClientHandler(key_server);
-		server.addHandler(handler);
-		server.connect();
-		System.out.println("Starting Server");
-		server.run();
+		if (options.contains("bitcask")) {
+			key_server = new KVServer(CACHE_SETS, CACHE_SET_SIZE, new BitcaskStore(BITCASK_DIR));
+		} else if (options.contains("lsm")) {
+			key_server = new KVServer(CACHE_SETS, CACHE_SET_SIZE, new LsmStore(LSM_DIR));
+		} else {
+			SlabAllocator slabs = options.contains("offheap") ? new SlabAllocator() : null;
+			if (options.contains("durable")) {
+				key_server = new KVServer(CACHE_SETS, CACHE_SET_SIZE, new KVStore(LOG_FILE, WriteAheadLog.DEFAULT_MAX_BATCH_SIZE, 0, slabs));
+			} else {
+				key_server = new KVServer(CACHE_SETS, CACHE_SET_SIZE, new KVStore(slabs));
+			}
+		}
+		if (options.contains("nio")) {
+			nio_server = new NioSocketServer("localhost", 8080);
+			nio_server.addHandler(options.contains("virtual")
+					? new VirtualThreadClientHandler(key_server)
+					: new KVClientHandler(key_server, 5, 0, queueCapacity, policy));
+			nio_server.setIdleTimeout(keepAliveTimeout);
+			nio_server.connect();
+			System.out.println("Starting Server (nio)");
+			nio_server.run();
+		} else {
+			server = new SocketServer("localhost", 8080);
+			server.addHandler(options.contains("virtual")
+					? new VirtualThreadClientHandler(key_server, keepAliveTimeout)
+					: new KVClientHandler(key_server, 5, keepAliveTimeout, queueCapacity, policy));
+			server.connect();
+			System.out.println("Starting Server");
+			server.run();
+		}
 	}
 
 }
@@ -0,0 +1,240 @@
+package edu.berkeley.cs162;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates blocks of memory outside the Java heap, so that large values
+ * held for a long time cost the garbage collector nothing.
+ *
+ * Memory is taken from the operating system in slabs of SLAB_SIZE bytes,
+ * direct ByteBuffers that are never given back, and each slab is cut into
+ * chunks of a single size class. Classes grow by about a quarter from 64
+ * bytes, so a block wastes at most a fifth of its chunk. Freed chunks go on
+ * their class's free list and are reused.
+ *
+ * A block is named by a long handle and is reference counted: allocation
+ * returns it with one reference, and the last release frees it. A reader
+ * that may race with the owner's release calls {@link #retain(long)} first;
+ * it fails once the block has been freed, even if its chunk has since been
+ * reused, because every reuse bumps a generation number kept in both the
+ * chunk and the handle.
+ *
+ * Each chunk starts with a header of three native-order ints: the
+ * reference count, the generation and the length of the data that follows.
+ */
+public class SlabAllocator {
+    static final int SLAB_SIZE = 1024 * 1024;
+    private static final int MIN_CHUNK_SIZE = 64;
+    private static final int MAX_CHUNK_SIZE = 1 << 30;
+    private static final int ALIGNMENT = 16;
+    private static final int HEADER_SIZE = 12;
+    private static final int REFS = 0;
+    private static final int GENERATION = 4;
+    private static final int LENGTH = 8;
+
+    private static final int CLASS_BITS = 7;
+    private static final int GENERATION_BITS = 64 - 32 - CLASS_BITS;
+    private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+    /**
+     * The chunks of one size
+     */
+    private static class SizeClass {
+        final int chunkSize;
+        final int chunksPerSlab;
+        /**
+         * Replaced, never changed, as slabs are added, so readers need no lock
+         */
+        volatile ByteBuffer slabs[] = new ByteBuffer[0];
+        /**
+         * Guarded by this
+         */
+        int free[] = new int[16];
+        int freeCount = 0;
+        int chunks = 0;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunksPerSlab = Math.max(1, SLAB_SIZE / chunkSize);
+        }
+    }
+
+    private final SizeClass classes[];
+    private final AtomicLong reserved = new AtomicLong(0);
+    private final AtomicLong used = new AtomicLong(0);
+
+    public SlabAllocator() {
+        List<SizeClass> sizes = new ArrayList<>();
+        for (long size = MIN_CHUNK_SIZE; size <= MAX_CHUNK_SIZE; size = align(size + size / 4)) {
+            sizes.add(new SizeClass((int) size));
+        }
+        classes = sizes.toArray(new SizeClass[0]);
+        if (classes.length > 1 << CLASS_BITS) {
+            throw new IllegalStateException("Too many size classes");
+        }
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Copy the data into a new block.
+     * @return the block's handle, holding one reference
+     * @throws IllegalArgumentException if the data is larger than the largest chunk
+     */
+    public long allocate(byte data[]) {
+        int needed = HEADER_SIZE + data.length;
+        int c = classFor(needed);
+        SizeClass sizeClass = classes[c];
+        int chunk = take(sizeClass);
+
+        ByteBuffer slab = sizeClass.slabs[chunk / sizeClass.chunksPerSlab];
+        int offset = (chunk % sizeClass.chunksPerSlab) * sizeClass.chunkSize;
+        int generation = (int) INTS.get(slab, offset + GENERATION);
+        slab.put(offset + HEADER_SIZE, data, 0, data.length);
+        INTS.set(slab, offset + LENGTH, data.length);
+        // Publishes the data: readers only look at a block once they hold a reference
+        INTS.setVolatile(slab, offset + REFS, 1);
+        used.addAndGet(sizeClass.chunkSize);
+        return ((long) generation << (32 + CLASS_BITS)) | ((long) c << 32) | (chunk & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Take a reference to a block, unless it has already been freed.
+     * @return false if the block no longer exists
+     */
+    public boolean retain(long handle) {
+        SizeClass sizeClass = classes[classOf(handle)];
+        ByteBuffer slab = slab(sizeClass, handle);
+        int offset = offset(sizeClass, handle);
+        while (true) {
+            int refs = (int) INTS.getVolatile(slab, offset + REFS);
+            if (refs == 0) {
+                return false;
+            }
+            if (INTS.compareAndSet(slab, offset + REFS, refs, refs + 1)) {
+                break;
+            }
+        }
+        // The chunk may have been freed and given to another block before the reference was taken
+        if ((int) INTS.getVolatile(slab, offset + GENERATION) != generationOf(handle)) {
+            release(handle);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drop a reference to a block, freeing it if it was the last.
+     */
+    public void release(long handle) {
+        SizeClass sizeClass = classes[classOf(handle)];
+        ByteBuffer slab = slab(sizeClass, handle);
+        int offset = offset(sizeClass, handle);
+        int refs = (int) INTS.getAndAdd(slab, offset + REFS, -1) - 1;
+        if (refs < 0) {
+            throw new IllegalStateException("Block released more often than it was retained");
+        }
+        if (refs == 0) {
+            // Bump the chunk's own generation, not the handle's: a retain that lost the race
+            // with a reuse releases through a stale handle, and may be the one to free the chunk
+            int generation = (int) INTS.getVolatile(slab, offset + GENERATION);
+            INTS.setVolatile(slab, offset + GENERATION, (generation + 1) & GENERATION_MASK);
+            used.addAndGet(-sizeClass.chunkSize);
+            synchronized (sizeClass) {
+                if (sizeClass.freeCount == sizeClass.free.length) {
+                    int larger[] = new int[sizeClass.free.length * 2];
+                    System.arraycopy(sizeClass.free, 0, larger, 0, sizeClass.freeCount);
+                    sizeClass.free = larger;
+                }
+                sizeClass.free[sizeClass.freeCount++] = (int) handle;
+            }
+        }
+    }
+
+    /**
+     * Copy a block's data out. The caller must hold a reference to it.
+     */
+    public byte[] read(long handle) {
+        SizeClass sizeClass = classes[classOf(handle)];
+        ByteBuffer slab = slab(sizeClass, handle);
+        int offset = offset(sizeClass, handle);
+        byte data[] = new byte[(int) INTS.get(slab, offset + LENGTH)];
+        slab.get(offset + HEADER_SIZE, data, 0, data.length);
+        return data;
+    }
+
+    /**
+     * @return bytes of off-heap memory taken from the operating system
+     */
+    public long reservedBytes() {
+        return reserved.get();
+    }
+
+    /**
+     * @return bytes of chunks holding live blocks
+     */
+    public long usedBytes() {
+        return used.get();
+    }
+
+    private int take(SizeClass sizeClass) {
+        synchronized (sizeClass) {
+            if (sizeClass.freeCount > 0) {
+                return sizeClass.free[--sizeClass.freeCount];
+            }
+            if (sizeClass.chunks == sizeClass.slabs.length * sizeClass.chunksPerSlab) {
+                int slabSize = sizeClass.chunksPerSlab * sizeClass.chunkSize;
+                ByteBuffer slab = ByteBuffer.allocateDirect(slabSize).order(ByteOrder.nativeOrder());
+                ByteBuffer slabs[] = new ByteBuffer[sizeClass.slabs.length + 1];
+                System.arraycopy(sizeClass.slabs, 0, slabs, 0, sizeClass.slabs.length);
+                slabs[slabs.length - 1] = slab;
+                sizeClass.slabs = slabs;
+                reserved.addAndGet(slabSize);
+            }
+            return sizeClass.chunks++;
+        }
+    }
+
+    private int classFor(int size) {
+        int lo = 0;
+        int hi = classes.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (classes[mid].chunkSize < size) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo == classes.length) {
+            throw new IllegalArgumentException("Block of " + size + " bytes is too large");
+        }
+        return lo;
+    }
+
+    private static int classOf(long handle) {
+        return (int) (handle >>> 32) & ((1 << CLASS_BITS) - 1);
+    }
+
+    private static int generationOf(long handle) {
+        return (int) (handle >>> (32 + CLASS_BITS)) & GENERATION_MASK;
+    }
+
+    private static ByteBuffer slab(SizeClass sizeClass, long handle) {
+        return sizeClass.slabs[(int) handle / sizeClass.chunksPerSlab];
+    }
+
+    private static int offset(SizeClass sizeClass, long handle) {
+        return ((int) handle % sizeClass.chunksPerSlab) * sizeClass.chunkSize;
+    }
+}
@@ -0,0 +1,363 @@
+package edu.berkeley.cs162;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * A binary snapshot of a store's contents, written and read in a stream so
+ * that memory use does not grow with the size of the store.
+ *
+ * The file starts with a magic number and a version. Entries follow in
+ * chunks of about CHUNK_SIZE bytes; each chunk is a u32 payload length, the
+ * CRC32C of the payload, then the payload: a u32 entry count and the
+ * entries, each a u32-length-prefixed UTF-8 key and value. Chunks can be
+ * checked and decoded independently of each other. After the last chunk
+ * comes an index of every chunk's offset and a fixed size footer: the index
+ * offset, the total number of entries, the index's CRC32C and the magic
+ * number again. A snapshot is written to a temporary file and moved into
+ * place once complete, so a file with a valid footer is a whole snapshot.
+ */
+public class SnapshotFile implements Closeable {
+    static final int MAGIC = 0x4B565350;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int CHUNK_HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 24;
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Path file;
+    private final FileChannel channel;
+    private final long entryCount;
+    private final long offsets[];
+    private final long indexOffset;
+
+    /**
+     * Open a snapshot and read its index.
+     * @throws IOException if the file cannot be read or is not a complete snapshot
+     */
+    public SnapshotFile(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE + FOOTER_SIZE) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            ByteBuffer header = read(0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported snapshot version " + version + ": " + file);
+            }
+
+            ByteBuffer footer = read(size - FOOTER_SIZE, FOOTER_SIZE);
+            indexOffset = footer.getLong();
+            entryCount = footer.getLong();
+            int indexChecksum = footer.getInt();
+            if (footer.getInt() != MAGIC || indexOffset < HEADER_SIZE || indexOffset > size - FOOTER_SIZE - 4) {
+                throw new IOException("Snapshot is incomplete: " + file);
+            }
+            ByteBuffer index = read(indexOffset, (int) (size - FOOTER_SIZE - indexOffset));
+            checkCrc(index, indexChecksum);
+            offsets = new long[index.getInt()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = index.getLong();
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return whether the file starts like a snapshot, as opposed to, say, an XML dump
+     */
+    public static boolean isSnapshot(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // Until the magic number is read or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public int getChunkCount() {
+        return offsets.length;
+    }
+
+    /**
+     * Check one chunk and feed its entries to the visitor. Chunks can be read
+     * from several threads at once.
+     * @throws IOException if the chunk cannot be read or is corrupt
+     */
+    public void readChunk(int chunk, BiConsumer<String, String> visitor) throws IOException {
+        long end = chunk + 1 < offsets.length ? offsets[chunk + 1] : indexOffset;
+        ByteBuffer buf = read(offsets[chunk], (int) (end - offsets[chunk]));
+        int length = buf.getInt();
+        int checksum = buf.getInt();
+        if (length != buf.remaining()) {
+            throw new IOException("Snapshot chunk " + chunk + " is corrupt: " + file);
+        }
+        buf = buf.slice();
+        checkCrc(buf, checksum);
+        try {
+            int count = buf.getInt();
+            for (int i = 0; i < count; i++) {
+                String key = readString(buf);
+                visitor.accept(key, readString(buf));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Snapshot chunk " + chunk + " is corrupt: " + file);
+        }
+    }
+
+    /**
+     * Feed every entry to the visitor, chunk by chunk, in the order they were written.
+     * @return the number of entries read
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public long read(BiConsumer<String, String> visitor) throws IOException {
+        long entries[] = new long[1];
+        for (int i = 0; i < offsets.length; i++) {
+            readChunk(i, (key, value) -> {
+                entries[0]++;
+                visitor.accept(key, value);
+            });
+        }
+        if (entries[0] != entryCount) {
+            throw new IOException("Snapshot holds " + entries[0] + " entries, expected " + entryCount + ": " + file);
+        }
+        return entries[0];
+    }
+
+    /**
+     * Feed every entry to the visitor, reading chunks on several threads at
+     * once. The visitor is called concurrently and in no particular order.
+     * @param threads the most threads to read with, counting the caller
+     * @return the number of entries read
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    public long readParallel(int threads, BiConsumer<String, String> visitor) throws IOException {
+        AtomicInteger next = new AtomicInteger(0);
+        LongAdder entries = new LongAdder();
+        AtomicReference<IOException> error = new AtomicReference<>();
+        Runnable reader = () -> {
+            int chunk;
+            while (error.get() == null && (chunk = next.getAndIncrement()) < offsets.length) {
+                try {
+                    readChunk(chunk, (key, value) -> {
+                        entries.increment();
+                        visitor.accept(key, value);
+                    });
+                } catch (IOException e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+
+        Thread helpers[] = new Thread[Math.max(0, Math.min(threads, offsets.length) - 1)];
+        for (int i = 0; i < helpers.length; i++) {
+            helpers[i] = new Thread(reader, "SnapshotFile-reader-" + i);
+            helpers[i].setDaemon(true);
+            helpers[i].start();
+        }
+        reader.run();
+        boolean interrupted = false;
+        for (Thread helper : helpers) {
+            while (helper.isAlive()) {
+                try {
+                    helper.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (error.get() != null) {
+            throw error.get();
+        }
+        if (entries.sum() != entryCount) {
+            throw new IOException("Snapshot holds " + entries.sum() + " entries, expected " + entryCount + ": " + file);
+        }
+        return entries.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Snapshot cut short: " + file);
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private void checkCrc(ByteBuffer buf, int expected) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate());
+        if ((int) crc.getValue() != expected) {
+            throw new IOException("Checksum mismatch in " + file);
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * Write a snapshot of the given entries. Only one chunk is held in memory
+     * at a time. The file is forced to disk and replaces any existing file
+     * atomically.
+     * @return the number of entries written
+     * @throws IOException if the snapshot could not be written, in which case the file is left as it was
+     */
+    public static long write(Path file, Iterable<? extends Map.Entry<String, String>> entries) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            long count;
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                count = write(channel, entries);
+                channel.force(true);
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private static long write(FileChannel channel, Iterable<? extends Map.Entry<String, String>> entries) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        writeFully(channel, header);
+
+        // Offsets of the chunks, grown as needed; eight bytes a chunk
+        ByteBuffer index = ByteBuffer.allocate(4 + 8 * 16);
+        index.putInt(0);
+        ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        chunk.position(CHUNK_HEADER_SIZE + 4);
+        int chunkEntries = 0;
+        int chunks = 0;
+        long count = 0;
+        long offset = HEADER_SIZE;
+
+        for (Map.Entry<String, String> entry : entries) {
+            byte key[] = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            byte value[] = entry.getValue().getBytes(StandardCharsets.UTF_8);
+            int needed = 8 + key.length + value.length;
+            if (chunkEntries > 0 && chunk.remaining() < needed) {
+                if (index.remaining() < 8) {
+                    index = grow(index);
+                }
+                index.putLong(offset);
+                offset += writeChunk(channel, chunk, chunkEntries);
+                chunks++;
+                chunkEntries = 0;
+                if (chunk.capacity() > CHUNK_SIZE) {
+                    chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                    chunk.position(CHUNK_HEADER_SIZE + 4);
+                }
+            }
+            if (chunk.remaining() < needed) {
+                // A single entry larger than a chunk gets a chunk of its own
+                ByteBuffer larger = ByteBuffer.allocate(CHUNK_HEADER_SIZE + 4 + needed);
+                larger.position(CHUNK_HEADER_SIZE + 4);
+                chunk = larger;
+            }
+            chunk.putInt(key.length).put(key).putInt(value.length).put(value);
+            chunkEntries++;
+            count++;
+        }
+        if (chunkEntries > 0) {
+            if (index.remaining() < 8) {
+                index = grow(index);
+            }
+            index.putLong(offset);
+            offset += writeChunk(channel, chunk, chunkEntries);
+            chunks++;
+        }
+
+        index.putInt(0, chunks);
+        index.flip();
+        CRC32C crc = new CRC32C();
+        crc.update(index.duplicate());
+        ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+        footer.putLong(offset).putLong(count).putInt((int) crc.getValue()).putInt(MAGIC).flip();
+        writeFully(channel, index);
+        writeFully(channel, footer);
+        return count;
+    }
+
+    /**
+     * Fill in the chunk's header, write it out and reset the buffer for the next chunk.
+     * @return the bytes written
+     */
+    private static int writeChunk(FileChannel channel, ByteBuffer chunk, int entries) throws IOException {
+        int length = chunk.position() - CHUNK_HEADER_SIZE;
+        chunk.putInt(CHUNK_HEADER_SIZE, entries);
+        CRC32C crc = new CRC32C();
+        crc.update(chunk.array(), CHUNK_HEADER_SIZE, length);
+        chunk.putInt(0, length).putInt(4, (int) crc.getValue());
+        chunk.flip();
+        writeFully(channel, chunk);
+        int written = chunk.limit();
+        chunk.clear();
+        chunk.position(CHUNK_HEADER_SIZE + 4);
+        return written;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf) {
+        ByteBuffer larger = ByteBuffer.allocate(buf.capacity() * 2);
+        buf.flip();
+        larger.put(buf);
+        return larger;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+}
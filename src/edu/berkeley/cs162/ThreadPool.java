@@ -30,15 +30,85 @@
  */
 package edu.berkeley.cs162;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Deque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A fixed number of worker threads servicing a queue of jobs. The queue is
+ * unbounded unless a capacity is given, in which case a full queue either
+ * rejects new jobs or blocks the submitter until there is room, depending on
+ * the {@link RejectionPolicy}.
+ *
+ * Jobs run in the order they were added. Nothing is synchronized on the
+ * pool: jobs go on a lock-free queue, and a worker that finds it empty parks
+ * until a submitter unparks it. A parked worker is claimed by flipping its
+ * idle flag, so each wake-up goes to exactly one worker, and a worker that
+ * leaves jobs behind on the queue wakes another for them.
+ */
 public class ThreadPool {
+    /**
+     * What {@link ThreadPool#addToQueue(Runnable)} does when the queue is full
+     */
+    public enum RejectionPolicy {
+        /** Refuse the job straight away */
+        REJECT,
+        /** Wait for a worker to take a job off the queue */
+        BLOCK
+    }
+
+    /**
+     * Weight given to the newest sample in the moving average of queue wait times
+     */
+    private static final double WAIT_TIME_WEIGHT = 0.1;
+
     /**
      * Set of threads in the threadpool
      */
     protected Thread threads[] = null;
-    protected LinkedList<Runnable> jobs = null;
+    protected Queue<Job> jobs = null;
+
+    /**
+     * Threads parked in {@link #getJob()}, most recently idle first
+     */
+    private final Deque<Waiter> idle = new ConcurrentLinkedDeque<>();
+
+    /**
+     * Free places in the queue; null if it is unbounded
+     */
+    private Semaphore slots = null;
+    private RejectionPolicy policy = RejectionPolicy.BLOCK;
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final AtomicLong averageWaitTime = new AtomicLong(Double.doubleToLongBits(0));
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    protected static class Job {
+        final Runnable task;
+        final long enqueued = System.currentTimeMillis();
+
+        Job(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    /**
+     * A thread waiting in {@link #getJob()}. It is on the idle list only while
+     * its flag is set, and whoever clears the flag owns it: a submitter that
+     * does so must unpark it, and the thread itself that does so must take
+     * itself off the list.
+     */
+    private static class Waiter {
+        final Thread thread = Thread.currentThread();
+        final AtomicBoolean idle = new AtomicBoolean();
+    }
 
     /**
      * Initialize the number of threads required in the threadpool.
@@ -46,9 +116,22 @@ public class ThreadPool {
      * @param size  How many threads in the thread pool.
      */
     public ThreadPool(int size) {
-        jobs = new LinkedList<>();
+        this(size, Integer.MAX_VALUE, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * @param size  How many threads in the thread pool.
+     * @param capacity  Most jobs waiting for a thread at once.
+     * @param policy  What to do with a job that arrives when the queue is full.
+     */
+    public ThreadPool(int size, int capacity, RejectionPolicy policy) {
+        if (capacity != Integer.MAX_VALUE) {
+            this.slots = new Semaphore(capacity);
+        }
+        this.policy = policy;
+        jobs = new ConcurrentLinkedQueue<>();
         threads = new Thread[size];
-        System.out.println("ThreadPool: Starting Threads...");
+        KVLog.log(KVLog.Level.INFO, "ThreadPool: Starting %d Threads", size);
         for (int i = 0; i < size; i++) {
             threads[i] = new Thread(() -> {
                 while (true) {
@@ -60,7 +143,6 @@ public class ThreadPool {
                     }
                 }
             });
-            System.out.println("Started Thread " + i);
             threads[i].start();
         }
     }
@@ -69,11 +151,38 @@ public class ThreadPool {
      * Add a job to the queue of tasks that has to be executed. As soon as a thread is available,
      * it will retrieve tasks from this queue and start processing.
      * @param r job that has to be executed asynchronously
+     * @return false if the queue is full and the job was rejected
      * @throws InterruptedException
      */
-    public synchronized void addToQueue(Runnable r) throws InterruptedException {
-        jobs.push(r);
-        notify();
+    public boolean addToQueue(Runnable r) throws InterruptedException {
+        if (slots != null) {
+            if (policy == RejectionPolicy.REJECT) {
+                if (!slots.tryAcquire()) {
+                    rejected.increment();
+                    return false;
+                }
+            } else {
+                slots.acquire();
+            }
+        }
+        depth.incrementAndGet();
+        jobs.offer(new Job(r));
+        wakeIdle();
+        return true;
+    }
+
+    /**
+     * Unpark one idle worker, if there is one.
+     */
+    private void wakeIdle() {
+        Waiter waiter;
+        while ((waiter = idle.pollFirst()) != null) {
+            // Entries whose flag is already clear have withdrawn themselves
+            if (waiter.idle.compareAndSet(true, false)) {
+                LockSupport.unpark(waiter.thread);
+                return;
+            }
+        }
     }
 
     /**
@@ -81,10 +190,82 @@ public class ThreadPool {
      * @return A runnable task that has to be executed
      * @throws InterruptedException
      */
-    public synchronized Runnable getJob() throws InterruptedException {
-        while (jobs.isEmpty()) {
-            wait();
+    public Runnable getJob() throws InterruptedException {
+        Waiter self = new Waiter();
+        Job job;
+        while ((job = jobs.poll()) == null) {
+            if (!self.idle.get()) {
+                // Advertise before polling again so that a job added in between
+                // is either seen then or followed by an unpark
+                self.idle.set(true);
+                idle.offerFirst(self);
+                continue;
+            }
+            // A stale permit can return early without a claim; the loop then parks again
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                withdraw(self);
+                throw new InterruptedException();
+            }
+        }
+        withdraw(self);
+        depth.decrementAndGet();
+        if (slots != null) {
+            slots.release();
+        }
+
+        recordWait(System.currentTimeMillis() - job.enqueued);
+        return job.task;
+    }
+
+    /**
+     * Stop waiting. A submitter may have claimed this thread for a job it has
+     * since taken another way; that wake-up is passed on if work is left.
+     */
+    private void withdraw(Waiter self) {
+        if (self.idle.compareAndSet(true, false)) {
+            idle.removeFirstOccurrence(self);
         }
-        return jobs.pop();
+        if (!jobs.isEmpty()) {
+            wakeIdle();
+        }
+    }
+
+    private void recordWait(long waited) {
+        long prev, next;
+        do {
+            prev = averageWaitTime.get();
+            double average = Double.longBitsToDouble(prev);
+            next = Double.doubleToLongBits(average + WAIT_TIME_WEIGHT * (waited - average));
+        } while (!averageWaitTime.compareAndSet(prev, next));
+        maxWaitTime.accumulateAndGet(waited, Math::max);
+    }
+
+    /**
+     * @return number of jobs waiting for a thread
+     */
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return moving average of the milliseconds recent jobs spent waiting for a thread
+     */
+    public double getAverageWaitTime() {
+        return Double.longBitsToDouble(averageWaitTime.get());
+    }
+
+    /**
+     * @return longest time in milliseconds any job has waited for a thread
+     */
+    public long getMaxWaitTime() {
+        return maxWaitTime.get();
+    }
+
+    /**
+     * @return number of jobs refused because the queue was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
     }
 }
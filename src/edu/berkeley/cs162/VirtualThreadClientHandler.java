@@ -0,0 +1,81 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A KVClientHandler that services every connection (or, behind
+ * NioSocketServer, every request) on its own virtual thread instead of a
+ * fixed number of pooled workers. Nearly all of a request's time is spent
+ * blocked on socket I/O or the simulated store delay, so the number of
+ * requests in progress is no longer capped by the worker count.
+ *
+ * Virtual threads need Java 21. On older runtimes the handler falls back to
+ * a fixed pool of FALLBACK_THREADS platform threads, so that a flood of
+ * connections cannot start a thread each, and an error is logged at startup
+ * since the server is then much less concurrent than configured. Work beyond
+ * that waits in a queue of FALLBACK_QUEUE_CAPACITY; once the queue is full it
+ * is answered with {@link KVClientHandler#SERVER_BUSY}, as the thread pool
+ * does with the "reject" policy, rather than left waiting with no timeout
+ * behind keep-alive connections.
+ */
+public class VirtualThreadClientHandler extends KVClientHandler {
+    /**
+     * Platform threads used when virtual threads are unavailable
+     */
+    static final int FALLBACK_THREADS = 64;
+    /**
+     * Most connections or requests waiting for a fallback thread
+     */
+    static final int FALLBACK_QUEUE_CAPACITY = 64;
+
+    private ExecutorService executor = null;
+    private boolean virtual = false;
+
+    public VirtualThreadClientHandler(KVServer kvServer) {
+        this(kvServer, 0);
+    }
+
+    /**
+     * @param kvServer the server requests are made against
+     * @param keepAliveTimeout as for {@link KVClientHandler#KVClientHandler(KVServer, int, int)}
+     */
+    public VirtualThreadClientHandler(KVServer kvServer, int keepAliveTimeout) {
+        super(kvServer, 0, keepAliveTimeout);
+        try {
+            // Looked up reflectively so the server still builds and runs on older runtimes
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtual = true;
+        } catch (ReflectiveOperationException e) {
+            KVLog.log(KVLog.Level.ERROR, "VirtualThreadClientHandler: virtual threads unavailable, falling back to %d platform threads",
+                    FALLBACK_THREADS);
+            executor = new ThreadPoolExecutor(FALLBACK_THREADS, FALLBACK_THREADS, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(FALLBACK_QUEUE_CAPACITY));
+        }
+    }
+
+    /**
+     * @return true if work is run on virtual threads, false if on the platform thread fallback
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    @Override
+    protected boolean dispatch(Runnable r) {
+        try {
+            executor.execute(r);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The fallback's queue is full, or the executor has been shut down; the caller answers the work instead
+            if (executor.isShutdown()) {
+                e.printStackTrace();
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package edu.berkeley.cs162;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only redo log for a KVStore. Every change to the store is written
+ * to disk as one record, so on startup the store is rebuilt by replaying the
+ * log from the beginning.
+ *
+ * Writes are group committed. Appending a record only queues it and returns
+ * its sequence number; a single flusher thread writes whatever is queued,
+ * up to a maximum batch size, and forces it to disk with one fsync. Writers
+ * then wait in {@link #awaitDurable(long)} for their record's batch, so the
+ * cost of an fsync is shared by every writer that arrived while the previous
+ * one was in progress. The flusher can also hold a batch open for a short
+ * while to let more writers join it.
+ *
+ * Each record is a u32 payload length, the CRC32C of the payload, then the
+ * payload: an operation byte, a u32 entry count and the entries, each a
+ * length prefixed UTF-8 key followed, for puts, by a length prefixed value.
+ * A batch is a single record, so it is recovered whole or not at all. A
+ * crash part way through an append leaves a short or mismatching record at
+ * the end of the file; replay stops there and cuts it off.
+ */
+public class WriteAheadLog implements Closeable {
+    static final byte PUT = 1;
+    static final byte DEL = 2;
+    /**
+     * Drop everything in the store, then put the record's entries. No longer
+     * written, as a large store makes too large a record, but still replayed.
+     */
+    static final byte RESET = 3;
+    /**
+     * The store's contents were replaced by the checkpoint for the segment
+     * that starts with this record. Carries no entries and changes nothing
+     * on replay, as the checkpoint is loaded anyway.
+     */
+    static final byte RESTORED = 4;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    static final int DEFAULT_MAX_BATCH_SIZE = 256;
+
+    /**
+     * Receives the changes found in the log, in the order they were made.
+     */
+    public interface Visitor {
+        void put(String key, String value);
+
+        void del(String key);
+
+        void clear();
+    }
+
+    private final Path file;
+    private final FileChannel channel;
+    private final int maxBatchSize;
+    private final long maxDelayNanos;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Signalled when a record is queued or the log is closed
+     */
+    private final Condition queued = lock.newCondition();
+    /**
+     * Signalled when a batch is on disk or has failed
+     */
+    private final Condition flushed = lock.newCondition();
+    private final Queue<ByteBuffer> pending = new ArrayDeque<>();
+    /**
+     * Records taken by the flusher and not yet on disk
+     */
+    private int flushing = 0;
+    /**
+     * Sequence number of the last record known to be on disk
+     */
+    private long durableLsn = 0;
+    /**
+     * Bytes in the file plus those queued to be written
+     */
+    private long size = 0;
+    private IOException broken = null;
+    private boolean closed = false;
+    private Thread flusher = null;
+
+    public WriteAheadLog(Path file) throws IOException {
+        this(file, DEFAULT_MAX_BATCH_SIZE, 0);
+    }
+
+    /**
+     * Open the log, creating it if it does not exist. Nothing can be appended
+     * until the log has been replayed.
+     * @param file where the log is kept
+     * @param maxBatchSize most records written and forced to disk together
+     * @param maxDelayMicros longest the flusher waits for more records once it has one, or 0 not to wait
+     * @throws IOException if the file cannot be opened
+     */
+    public WriteAheadLog(Path file, int maxBatchSize, long maxDelayMicros) throws IOException {
+        this.file = file;
+        this.maxBatchSize = Math.max(1, maxBatchSize);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Feed every intact record to the visitor, then truncate whatever follows
+     * the last of them so that appends continue from there.
+     * @return the number of records replayed
+     * @throws IOException if the file cannot be read or truncated
+     */
+    public long replay(Visitor visitor) throws IOException {
+        if (flusher != null) {
+            throw new IllegalStateException("WriteAheadLog has already been replayed");
+        }
+        long size = channel.size();
+        long offset = 0;
+        long records = 0;
+        CRC32C crc = new CRC32C();
+
+        channel.position(0);
+        // Not closed: that would close the channel too
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER_SIZE));
+        while (offset < size) {
+            byte payload[];
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || length > size - offset - HEADER_SIZE) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+
+            try {
+                apply(ByteBuffer.wrap(payload), visitor);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                break;
+            }
+            offset += HEADER_SIZE + payload.length;
+            records++;
+        }
+
+        if (offset < size) {
+            KVLog.log(KVLog.Level.ERROR, "WriteAheadLog: discarding %d bytes of torn or corrupt records at the end of %s", size - offset, file);
+            channel.truncate(offset);
+            channel.force(true);
+        }
+        channel.position(offset);
+        Thread t = new Thread(this::flush, "WriteAheadLog-flusher");
+        t.setDaemon(true);
+        lock.lock();
+        try {
+            flusher = t;
+            this.size = offset;
+        } finally {
+            lock.unlock();
+        }
+        t.start();
+        KVLog.log(KVLog.Level.INFO, "WriteAheadLog: replayed %d records from %s", records, file);
+        return records;
+    }
+
+    private static void apply(ByteBuffer payload, Visitor visitor) {
+        byte op = payload.get();
+        int count = payload.getInt();
+        if (op == RESET) {
+            visitor.clear();
+        } else if (op == RESTORED) {
+            return;
+        } else if (op != PUT && op != DEL) {
+            throw new IllegalArgumentException("Unknown operation " + op);
+        }
+        for (int i = 0; i < count; i++) {
+            String key = readString(payload);
+            if (op == DEL) {
+                visitor.del(key);
+            } else {
+                visitor.put(key, readString(payload));
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0 || length > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String s = new String(buf.array(), buf.arrayOffset() + buf.position(), length, StandardCharsets.UTF_8);
+        buf.position(buf.position() + length);
+        return s;
+    }
+
+    /**
+     * Record a put of every entry, in order.
+     * @return the record's sequence number, to pass to {@link #awaitDurable(long)}
+     */
+    public long put(Collection<KVPair> pairs) throws IOException {
+        byte entries[][] = new byte[pairs.size() * 2][];
+        int i = 0;
+        for (KVPair pair : pairs) {
+            entries[i++] = pair.getKey().getBytes(StandardCharsets.UTF_8);
+            entries[i++] = pair.getValue().getBytes(StandardCharsets.UTF_8);
+        }
+        return append(encode(PUT, pairs.size(), entries));
+    }
+
+    public long put(String key, String value) throws IOException {
+        return put(Collections.singletonList(new KVPair(key, value)));
+    }
+
+    /**
+     * Record the removal of every key.
+     * @return the record's sequence number
+     */
+    public long del(Collection<String> keys) throws IOException {
+        byte entries[][] = new byte[keys.size()][];
+        int i = 0;
+        for (String key : keys) {
+            entries[i++] = key.getBytes(StandardCharsets.UTF_8);
+        }
+        return append(encode(DEL, keys.size(), entries));
+    }
+
+    /**
+     * Record that the store's contents were replaced by the checkpoint
+     * written for this segment.
+     * @return the record's sequence number
+     */
+    public long restored() throws IOException {
+        return append(encode(RESTORED, 0, new byte[0][]));
+    }
+
+    private static ByteBuffer encode(byte op, int count, byte entries[][]) throws IOException {
+        long length = 1 + 4;
+        for (byte entry[] : entries) {
+            length += 4 + entry.length;
+        }
+        if (length > Integer.MAX_VALUE - HEADER_SIZE) {
+            throw new IOException("Record too large for the log");
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + (int) length);
+        record.position(HEADER_SIZE);
+        record.put(op).putInt(count);
+        for (byte entry[] : entries) {
+            record.putInt(entry.length).put(entry);
+        }
+
+        CRC32C crc = new CRC32C();
+        crc.update(record.array(), HEADER_SIZE, (int) length);
+        record.putInt(0, (int) length);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    /**
+     * Queue the record to be written by the flusher.
+     * @return the record's sequence number; records are numbered from 1 in the order they are queued
+     */
+    private long append(ByteBuffer record) throws IOException {
+        lock.lock();
+        try {
+            if (flusher == null) {
+                throw new IllegalStateException("WriteAheadLog must be replayed before it is appended to");
+            }
+            if (broken != null) {
+                throw broken;
+            }
+            if (closed) {
+                throw new IOException("WriteAheadLog is closed");
+            }
+            pending.add(record);
+            size += record.remaining();
+            queued.signal();
+            return durableLsn + pending.size() + flushing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the length the log will have once every record queued so far is written
+     */
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the sequence number of the last record queued, or 0 if there is none
+     */
+    public long lastLsn() {
+        lock.lock();
+        try {
+            return durableLsn + pending.size() + flushing;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Block until the record with the given sequence number, and so every one
+     * before it, is on disk.
+     * @throws IOException if the log failed before the record could be written
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        boolean interrupted = false;
+        lock.lock();
+        try {
+            while (durableLsn < lsn) {
+                if (broken != null) {
+                    throw broken;
+                }
+                try {
+                    flushed.await();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            lock.unlock();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Body of the flusher thread: repeatedly take a batch of queued records,
+     * write it with one gathering write and force it to disk with one fsync.
+     */
+    private void flush() {
+        while (true) {
+            ByteBuffer batch[];
+            lock.lock();
+            try {
+                while (pending.isEmpty() && !closed) {
+                    queued.awaitUninterruptibly();
+                }
+                if (pending.isEmpty()) {
+                    return;
+                }
+                // Hold the batch open a little for writers that are about to arrive
+                long wait = maxDelayNanos;
+                while (wait > 0 && pending.size() < maxBatchSize && !closed) {
+                    try {
+                        wait = queued.awaitNanos(wait);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = new ByteBuffer[Math.min(pending.size(), maxBatchSize)];
+                for (int i = 0; i < batch.length; i++) {
+                    batch[i] = pending.poll();
+                }
+                flushing = batch.length;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            long start = -1;
+            try {
+                start = channel.position();
+                long remaining = 0;
+                for (ByteBuffer record : batch) {
+                    remaining += record.remaining();
+                }
+                while (remaining > 0) {
+                    remaining -= channel.write(batch);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+                // Do not leave part of a record on disk; what follows it would be lost on replay
+                try {
+                    if (start >= 0) {
+                        channel.truncate(start);
+                    }
+                } catch (IOException f) {
+                    // The torn tail is cut off on the next replay instead
+                }
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    // Changes queued behind the failure are already visible in memory, so the
+                    // log can no longer be trusted to match the store. Fail every writer from now on.
+                    KVLog.log(KVLog.Level.ERROR, "WriteAheadLog: could not write %s: %s", file, error);
+                    broken = error;
+                    pending.clear();
+                } else {
+                    durableLsn += batch.length;
+                }
+                flushing = 0;
+                flushed.signalAll();
+                if (error != null) {
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Write out everything already queued, then close the file.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread t;
+        lock.lock();
+        try {
+            closed = true;
+            queued.signal();
+            t = flusher;
+        } finally {
+            lock.unlock();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        channel.close();
+    }
+}
@@ -10,12 +10,19 @@ import java.io.StringReader;
 import java.io.StringWriter;
 
 public class XmlFormatter {
+    /**
+     * Looking up a TransformerFactory scans the classpath, so each thread keeps
+     * the one it found. Factories are not thread safe, hence not one shared.
+     */
+    private static final ThreadLocal<TransformerFactory> factories =
+            ThreadLocal.withInitial(TransformerFactory::newInstance);
+
     public static String prettyFormat(String input, int indent) {
         try {
             Source xmlInput = new StreamSource(new StringReader(input));
             StringWriter stringWriter = new StringWriter();
             StreamResult xmlOutput = new StreamResult(stringWriter);
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            TransformerFactory transformerFactory = factories.get();
             transformerFactory.setAttribute("indent-number", indent);
             Transformer transformer = transformerFactory.newTransformer();
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
@@ -0,0 +1,66 @@
+package edu.berkeley.cs162;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Submits one job per worker to a {@link ThreadPool}, all at once from
+ * separate threads, over and over. Each job holds its worker until every job
+ * of the round has started, the way a keep-alive connection holds one, so the
+ * round only finishes if every job was handed to its own worker. A lost
+ * wake-up leaves a job on the queue while a worker stays parked, and the
+ * round times out.
+ *
+ * Run with: java edu.berkeley.cs162.ThreadPoolStressTest [rounds]
+ */
+public class ThreadPoolStressTest {
+    private static final int WORKERS = 8;
+    private static final long TIMEOUT_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        ThreadPool pool = new ThreadPool(WORKERS);
+        CyclicBarrier start = new CyclicBarrier(WORKERS + 1);
+
+        for (int round = 0; round < rounds; round++) {
+            CountDownLatch started = new CountDownLatch(WORKERS);
+            CountDownLatch finished = new CountDownLatch(WORKERS);
+            Runnable job = () -> {
+                started.countDown();
+                try {
+                    started.await(2 * TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                finished.countDown();
+            };
+
+            Thread submitters[] = new Thread[WORKERS];
+            for (int i = 0; i < WORKERS; i++) {
+                submitters[i] = new Thread(() -> {
+                    try {
+                        start.await();
+                        pool.addToQueue(job);
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                submitters[i].start();
+            }
+            start.await();
+            for (Thread submitter : submitters) {
+                submitter.join();
+            }
+
+            if (!started.await(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                System.err.printf("Round %d: %d jobs waited with %d queued while workers were parked%n",
+                        round, started.getCount(), pool.getQueueDepth());
+                System.exit(1);
+            }
+            finished.await();
+        }
+        System.out.printf("%d rounds passed, longest wait %d ms%n", rounds, pool.getMaxWaitTime());
+        System.exit(0);
+    }
+}